@@ -0,0 +1,354 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The built-in functions every script can use.
+class Builtins {
+    static void registerAll() {
+        // Appends an element to a list.
+        NativeFunction.register("append", "list, element", (list, element) -> {
+            if (!list.isArray()) {
+                throw new RuntimeException("append expects first argument to be a list.");
+            }
+            list.asArray().add(element);
+            return list;
+        });
+
+        // Removes the element at an index from a list.
+        NativeFunction.register("remove", "list, index", (list, index) -> {
+            if (!list.isArray()) {
+                throw new RuntimeException("remove expects first argument to be a list.");
+            }
+            long i = index.asLong();
+            List<Value> values = list.asArray();
+            if (i < 0 || i >= values.size()) {
+                throw new RuntimeException("remove: index out of bounds.");
+            }
+            return Value.ofText(values.remove((int) i).toString());
+        });
+
+        // Puts a key-value pair into a dictionary.
+        NativeFunction.register("put", "dictionary, key, value", (dict, key, value) -> {
+            mutableDictionary(dict, "put").put(key, value);
+            return dict;
+        });
+
+        // Removes a key from a dictionary and returns its value.
+        NativeFunction.register("dict_remove", "dictionary, key", (dict, key) -> {
+            Map<Value, Value> values = mutableDictionary(dict, "dict_remove");
+            if (!values.containsKey(key)) {
+                throw new RuntimeException("dict_remove: key not found.");
+            }
+            return values.remove(key);
+        });
+
+        // A lazy range of numbers: range(end), range(start, end) or range(start, end, step).
+        // range(sorted_dict, lo, hi) is the part of a sorted dictionary with lo <= key < hi.
+        NativeFunction.register(new NativeFunction("range", 1, 3, "[start,] end [, step] | sorted_dict, lo, hi") {
+            public Value call(Value[] args) {
+                switch (args.length) {
+                    case 1: return call1(args[0]);
+                    case 2: return call2(args[0], args[1]);
+                    default: return call3(args[0], args[1], args[2]);
+                }
+            }
+            public Value call1(Value end) {
+                return range(Value.ofInteger(0), end, Value.ofInteger(1));
+            }
+            public Value call2(Value start, Value end) {
+                return range(start, end, Value.ofInteger(1));
+            }
+            public Value call3(Value start, Value end, Value step) {
+                if (start.isSortedDict()) {
+                    return Value.ofSortedDict(start.asSortedDict().range(end, step));
+                }
+                return range(start, end, step);
+            }
+        });
+
+        // Pipelines: map, filter and take are lazy; the others are terminal.
+        NativeFunction.register("map", "sequence, function",
+                (seq, fn) -> Value.ofPipeline(Pipeline.map(seq, fn.asFunction())));
+        NativeFunction.register("filter", "sequence, predicate",
+                (seq, fn) -> Value.ofPipeline(Pipeline.filter(seq, fn.asFunction())));
+        NativeFunction.register("take", "sequence, count",
+                (seq, count) -> Value.ofPipeline(Pipeline.take(seq, count.asLong())));
+        NativeFunction.register("reduce", "sequence, function, initial",
+                (seq, fn, initial) -> Pipeline.reduce(seq, fn.asFunction(), initial));
+        NativeFunction.register("sum", "sequence", Pipeline::sum);
+        NativeFunction.register("to_list", "sequence", Pipeline::toList);
+        // A new list in ascending order of the elements, or of key_fn(element).
+        NativeFunction.register("sort", 1, 2, "sequence [, key_fn]",
+                args -> Pipeline.sort(args[0], args.length > 1 ? args[1].asFunction() : null));
+
+        // The number of elements of a collection, or characters of a text.
+        NativeFunction.register("size", "collection", Builtins::size);
+
+        // The value for a key in a dictionary, or the default (an error if
+        // none is given) when the key is absent.
+        NativeFunction.register("lookup", 2, 3, "dictionary, key [, default]", args -> {
+            Map<Value, Value> map = dictionary(args[0], "lookup");
+            Value value = map.get(args[1]);
+            if (value == null) {
+                if (args.length < 3) {
+                    throw new RuntimeException("lookup: key not found.");
+                }
+                return args[2];
+            }
+            return value;
+        });
+
+        // Persistent vectors and dictionaries: immutable, and every update
+        // returns a new version sharing most of its structure with the old
+        // one, so keeping or passing on a version never needs a copy.
+        NativeFunction.register("pvector", 0, 1, "[sequence]", args -> {
+            if (args.length == 0) {
+                return Value.ofPVector(PersistentVector.EMPTY);
+            }
+            if (args[0].isPVector()) {
+                return args[0];
+            }
+            List<Value> values = args[0].isArray() ? args[0].asArray() : Pipeline.toList(args[0]).asArray();
+            return Value.ofPVector(PersistentVector.of(values));
+        });
+        NativeFunction.register("pdict", 0, 1, "[dictionary]", args -> Value.ofPDict(
+                args.length == 0 ? PersistentMap.EMPTY : PersistentMap.of(dictionary(args[0], "pdict"))));
+        // Copies back to a mutable dictionary; to_list does the same for vectors.
+        NativeFunction.register("to_dict", "dictionary",
+                dict -> Value.ofDictionary(new HashMap<>(dictionary(dict, "to_dict"))));
+
+        // The collection with key set to value: an index of a vector (its
+        // size appends) or a key of a dictionary.
+        NativeFunction.register("assoc", "collection, key, value", (coll, key, value) -> {
+            if (coll.isPVector()) {
+                PersistentVector vector = coll.asPVector();
+                return Value.ofPVector(vector.with(index(key, vector.size() + 1, "assoc"), value));
+            }
+            if (coll.isPDict()) {
+                return Value.ofPDict(coll.asPDict().plus(key, value));
+            }
+            throw new RuntimeException("assoc expects a persistent vector or dictionary.");
+        });
+        NativeFunction.register("dissoc", "dictionary, key", (dict, key) -> {
+            if (!dict.isPDict()) {
+                throw new RuntimeException("dissoc expects a persistent dictionary.");
+            }
+            return Value.ofPDict(dict.asPDict().minus(key));
+        });
+        NativeFunction.register("conj", "vector, element", (vector, element) -> {
+            if (!vector.isPVector()) {
+                throw new RuntimeException("conj expects a persistent vector.");
+            }
+            return Value.ofPVector(vector.asPVector().plus(element));
+        });
+        NativeFunction.register("drop_last", "vector", vector -> {
+            if (!vector.isPVector()) {
+                throw new RuntimeException("drop_last expects a persistent vector.");
+            }
+            if (vector.asPVector().isEmpty()) {
+                throw new RuntimeException("drop_last: vector is empty.");
+            }
+            return Value.ofPVector(vector.asPVector().dropLast());
+        });
+
+        // Whether a collection holds an element (a key, for dictionaries), or
+        // a text holds a substring. Sets and dictionaries answer in O(1).
+        NativeFunction.register("contains", "collection, element", Builtins::contains);
+
+        // Sets, deques and heaps: mutable, like lists and dictionaries.
+        NativeFunction.register("set", 0, 1, "[sequence]", args -> {
+            SetValue set = new SetValue();
+            if (args.length > 0) {
+                Pipeline.forEach(args[0], value -> {
+                    set.add(value);
+                    return true;
+                });
+            }
+            return Value.ofSet(set);
+        });
+        NativeFunction.register("set_add", "set, element", (set, element) -> {
+            set(set, "set_add").add(element);
+            return set;
+        });
+        // Returns whether the element was in the set.
+        NativeFunction.register("set_remove", "set, element",
+                (set, element) -> Value.ofBoolean(set(set, "set_remove").remove(element)));
+
+        NativeFunction.register("deque", 0, 1, "[sequence]", args -> {
+            DequeValue deque = new DequeValue();
+            if (args.length > 0) {
+                Pipeline.forEach(args[0], value -> {
+                    deque.addLast(value);
+                    return true;
+                });
+            }
+            return Value.ofDeque(deque);
+        });
+        NativeFunction.register("push_front", "deque, element", (deque, element) -> {
+            deque(deque, "push_front").addFirst(element);
+            return deque;
+        });
+        NativeFunction.register("push_back", "deque, element", (deque, element) -> {
+            deque(deque, "push_back").addLast(element);
+            return deque;
+        });
+        NativeFunction.register("pop_front", "deque",
+                deque -> nonEmpty(deque(deque, "pop_front").pollFirst(), "pop_front: deque is empty."));
+        NativeFunction.register("pop_back", "deque",
+                deque -> nonEmpty(deque(deque, "pop_back").pollLast(), "pop_back: deque is empty."));
+        NativeFunction.register("peek_front", "deque",
+                deque -> nonEmpty(deque(deque, "peek_front").peekFirst(), "peek_front: deque is empty."));
+        NativeFunction.register("peek_back", "deque",
+                deque -> nonEmpty(deque(deque, "peek_back").peekLast(), "peek_back: deque is empty."));
+
+        // A min-heap: heap_pop returns the smallest element, or the one with
+        // the smallest key_fn(element) if a key function is given.
+        NativeFunction.register("heap", 0, 1, "[key_fn]",
+                args -> Value.ofHeap(new HeapValue(args.length > 0 ? args[0].asFunction() : null)));
+        NativeFunction.register("heap_push", "heap, element", (heap, element) -> {
+            heap(heap, "heap_push").add(element);
+            return heap;
+        });
+        NativeFunction.register("heap_pop", "heap",
+                heap -> nonEmpty(heap(heap, "heap_pop").poll(), "heap_pop: heap is empty."));
+        NativeFunction.register("heap_peek", "heap",
+                heap -> nonEmpty(heap(heap, "heap_peek").peek(), "heap_peek: heap is empty."));
+
+        // A dictionary kept in key order. put, dict_remove, lookup and the
+        // other dictionary functions work on it; for-in visits its keys in
+        // order. floor and ceil find the nearest key at or below, or at or
+        // above, a key, or return the default (an error if none is given).
+        NativeFunction.register("sorted_dict", 0, 1, "[dictionary]", args -> {
+            SortedDictValue dict = new SortedDictValue();
+            if (args.length > 0) {
+                dict.putAll(dictionary(args[0], "sorted_dict"));
+            }
+            return Value.ofSortedDict(dict);
+        });
+        NativeFunction.register("floor", 2, 3, "sorted_dict, key [, default]",
+                args -> nearest(sortedDict(args[0], "floor").floorKey(args[1]), args, "floor"));
+        NativeFunction.register("ceil", 2, 3, "sorted_dict, key [, default]",
+                args -> nearest(sortedDict(args[0], "ceil").ceilingKey(args[1]), args, "ceil"));
+
+        // Describes what the variables visible at the call keep alive in memory.
+        NativeFunction.registerScoped("heap_report", 0, 0, "none",
+                (scope, args) -> Value.ofText(HeapReport.of(scope)));
+
+        FileIO.registerAll();
+        StdIn.registerAll();
+    }
+
+    private static Value size(Value value) {
+        switch (value.getType()) {
+            case TEXT: return Value.ofInteger(value.asText().length());
+            case ARRAY: return Value.ofInteger(value.asArray().size());
+            case DICTIONARY: return Value.ofInteger(value.asDictionary().size());
+            case RANGE: return Value.ofInteger(value.asRange().size());
+            case PVECTOR: return Value.ofInteger(value.asPVector().size());
+            case PDICT: return Value.ofInteger(value.asPDict().size());
+            case SET: return Value.ofInteger(value.asSet().size());
+            case DEQUE: return Value.ofInteger(value.asDeque().size());
+            case HEAP: return Value.ofInteger(value.asHeap().size());
+            case SORTED_DICT: return Value.ofInteger(value.asSortedDict().size());
+            default: throw new RuntimeException("size expects a collection or text.");
+        }
+    }
+
+    private static Value contains(Value collection, Value element) {
+        switch (collection.getType()) {
+            case TEXT: return Value.ofBoolean(collection.asText().contains(element.asText()));
+            case ARRAY: return Value.ofBoolean(collection.asArray().contains(element));
+            case DICTIONARY: return Value.ofBoolean(collection.asDictionary().containsKey(element));
+            case PVECTOR: return Value.ofBoolean(collection.asPVector().contains(element));
+            case PDICT: return Value.ofBoolean(collection.asPDict().containsKey(element));
+            case SET: return Value.ofBoolean(collection.asSet().contains(element));
+            case DEQUE: return Value.ofBoolean(collection.asDeque().contains(element));
+            case HEAP: return Value.ofBoolean(collection.asHeap().contains(element));
+            case SORTED_DICT: return Value.ofBoolean(collection.asSortedDict().containsKey(element));
+            default: throw new RuntimeException("contains expects a collection or text.");
+        }
+    }
+
+    private static SetValue set(Value value, String function) {
+        if (!value.isSet()) {
+            throw new RuntimeException(function + " expects first argument to be a set.");
+        }
+        return value.asSet();
+    }
+
+    private static DequeValue deque(Value value, String function) {
+        if (!value.isDeque()) {
+            throw new RuntimeException(function + " expects first argument to be a deque.");
+        }
+        return value.asDeque();
+    }
+
+    private static HeapValue heap(Value value, String function) {
+        if (!value.isHeap()) {
+            throw new RuntimeException(function + " expects first argument to be a heap.");
+        }
+        return value.asHeap();
+    }
+
+    // The element taken from a deque or heap, which is null if it was empty.
+    private static Value nonEmpty(Value element, String message) {
+        if (element == null) {
+            throw new RuntimeException(message);
+        }
+        return element;
+    }
+
+    // The entries of a mutable, sorted or persistent dictionary.
+    private static Map<Value, Value> dictionary(Value value, String function) {
+        if (value.isPDict()) {
+            return value.asPDict();
+        }
+        return mutableDictionary(value, function);
+    }
+
+    private static Map<Value, Value> mutableDictionary(Value value, String function) {
+        if (value.isDictionary()) {
+            return value.asDictionary();
+        }
+        if (value.isSortedDict()) {
+            return value.asSortedDict();
+        }
+        throw new RuntimeException(function + " expects first argument to be a dictionary.");
+    }
+
+    private static SortedDictValue sortedDict(Value value, String function) {
+        if (!value.isSortedDict()) {
+            throw new RuntimeException(function + " expects first argument to be a sorted dictionary.");
+        }
+        return value.asSortedDict();
+    }
+
+    // The key found by floor or ceil, or else the default.
+    private static Value nearest(Value key, Value[] args, String function) {
+        if (key != null) {
+            return key;
+        }
+        if (args.length < 3) {
+            throw new RuntimeException(function + ": no such key.");
+        }
+        return args[2];
+    }
+
+    private static int index(Value index, int limit, String function) {
+        long i = index.asLong();
+        if (i < 0 || i >= limit) {
+            throw new RuntimeException(function + ": index out of bounds.");
+        }
+        return (int) i;
+    }
+
+    private static Value range(Value start, Value end, Value step) {
+        if (step.asNumber() == 0) {
+            throw new RuntimeException("range: step must not be zero.");
+        }
+        if (start.isInteger() && step.isInteger()) {
+            return Value.ofRange(new RangeValue(start.asLong(), end.asNumber(), step.asLong()));
+        }
+        return Value.ofRange(new RangeValue(start.asNumber(), end.asNumber(), step.asNumber()));
+    }
+}
@@ -0,0 +1,595 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The closure engine: every node is compiled once into a tree of Java
+// lambdas, with operator dispatch, builtin arity and the shape of each
+// statement decided up front rather than on every evaluation. Variables
+// are resolved up front as far as the compiler can see, see Name.
+public class ClosureCompiler {
+    interface Eval {
+        Value eval(Environment env);
+    }
+
+    interface Test {
+        boolean test(Environment env);
+    }
+
+    // Runs a statement and returns the value of a return statement it
+    // executed, or null if it completed normally.
+    interface Exec {
+        Value exec(Environment env);
+    }
+
+    // A top-level statement compiled by this engine.
+    static final class Compiled extends Stmt {
+        private static final long serialVersionUID = 1L;
+
+        final Stmt source;
+        private final transient Exec code;
+
+        Compiled(Stmt source, Exec code) {
+            this.source = source;
+            this.code = code;
+        }
+
+        @Override
+        public void execute(Environment env) {
+            Value returned = code.exec(env);
+            if (returned != null) {
+                throw new ReturnException(returned);
+            }
+        }
+    }
+
+    // The scopes a node runs in, innermost first, as far out as the
+    // parameters of the enclosing function: one per Environment the compiled
+    // code creates, with every name that may be defined in it. What lies
+    // past them, the function's closure or the top level, is not known.
+    static final class Scope {
+        final Set<String> names; // null if any name may be defined here
+        final Scope parent;
+
+        Scope(Set<String> names, Scope parent) {
+            this.names = names;
+            this.parent = parent;
+        }
+    }
+
+    // A variable resolved at compile time to the depths of the scopes that
+    // may hold it, innermost first, and the depth from which nothing is
+    // known and the name is looked up as usual. Every other scope in between
+    // is skipped without a lookup. When the lookup starts at a global scope,
+    // the slot found there is kept along with that scope, since the slot of
+    // a global never moves and nothing can shadow it.
+    static final class Name {
+        private static final class Found {
+            final Environment scope;
+            final Environment.Binding binding;
+
+            Found(Environment scope, Environment.Binding binding) {
+                this.scope = scope;
+                this.binding = binding;
+            }
+        }
+
+        final String name;
+        private final int[] depths;
+        private final int tail;
+        private Found found;
+
+        Name(String name, Scope scope) {
+            this.name = name;
+            int[] candidates = new int[0];
+            int depth = 0;
+            for (Scope s = scope; s != null && s.names != null; s = s.parent, depth++) {
+                if (s.names.contains(name)) {
+                    candidates = Arrays.copyOf(candidates, candidates.length + 1);
+                    candidates[candidates.length - 1] = depth;
+                }
+            }
+            this.depths = candidates;
+            this.tail = depth;
+        }
+
+        Value get(Environment env) {
+            Environment scope = env;
+            int at = 0;
+            for (int depth : depths) {
+                for (; at < depth; at++) {
+                    scope = scope.parent();
+                }
+                Environment.Binding binding = scope.local(name);
+                if (binding != null) {
+                    return binding.value;
+                }
+            }
+            for (; at < tail; at++) {
+                scope = scope.parent();
+            }
+            Found last = found;
+            if (last != null && last.scope == scope) {
+                return last.binding.value;
+            }
+            if (scope.parent() == null) {
+                Environment.Binding binding = scope.local(name);
+                if (binding != null) {
+                    found = new Found(scope, binding);
+                    return binding.value;
+                }
+            }
+            return scope.get(name);
+        }
+
+        // Environment.set: assigns the variable wherever it is visible, or
+        // defines it in env.
+        void set(Environment env, Value value) {
+            Environment scope = env;
+            int at = 0;
+            for (int depth : depths) {
+                for (; at < depth; at++) {
+                    scope = scope.parent();
+                }
+                Environment.Binding binding = scope.local(name);
+                if (binding != null) {
+                    scope.write(binding, name, value);
+                    return;
+                }
+            }
+            for (; at < tail; at++) {
+                scope = scope.parent();
+            }
+            Found last = found;
+            if (last != null && last.scope == scope) {
+                scope.write(last.binding, name, value);
+                return;
+            }
+            for (Environment outer = scope; outer != null; outer = outer.parent()) {
+                Environment.Binding binding = outer.local(name);
+                if (binding != null) {
+                    outer.write(binding, name, value);
+                    return;
+                }
+            }
+            env.define(name, value);
+        }
+    }
+
+    private static final Value EMPTY = Value.ofText("");
+
+    public static List<Stmt> compile(List<Stmt> statements) {
+        List<Stmt> compiled = new ArrayList<>(statements.size());
+        for (Stmt stmt : statements) {
+            compiled.add(new Compiled(stmt, stmt(stmt, null)));
+        }
+        return compiled;
+    }
+
+    static Exec stmt(Stmt stmt, Scope scope) {
+        if (stmt instanceof Stmt.Print) {
+            Eval value = expr(((Stmt.Print) stmt).expression, scope);
+            return env -> {
+                System.out.println(value.eval(env));
+                return null;
+            };
+        } else if (stmt instanceof Stmt.PrintUpper) {
+            Eval value = expr(((Stmt.PrintUpper) stmt).expression, scope);
+            return env -> {
+                System.out.println(value.eval(env).toString().toUpperCase());
+                return null;
+            };
+        } else if (stmt instanceof Stmt.Var) {
+            Name name = new Name(((Stmt.Var) stmt).name, scope);
+            Eval value = expr(((Stmt.Var) stmt).expression, scope);
+            return env -> {
+                name.set(env, value.eval(env));
+                return null;
+            };
+        } else if (stmt instanceof Stmt.Expression) {
+            Eval value = expr(((Stmt.Expression) stmt).expression, scope);
+            return env -> {
+                value.eval(env);
+                return null;
+            };
+        } else if (stmt instanceof Stmt.Block) {
+            return block((Stmt.Block) stmt, scope);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            Test condition = test(ifStmt.condition, scope);
+            Exec thenBranch = stmt(ifStmt.thenBranch, scope);
+            if (ifStmt.elseBranch == null) {
+                return env -> condition.test(env) ? thenBranch.exec(env) : null;
+            }
+            Exec elseBranch = stmt(ifStmt.elseBranch, scope);
+            return env -> condition.test(env) ? thenBranch.exec(env) : elseBranch.exec(env);
+        } else if (stmt instanceof Stmt.While) {
+            Test condition = test(((Stmt.While) stmt).condition, scope);
+            Exec body = stmt(((Stmt.While) stmt).body, scope);
+            return env -> {
+                while (condition.test(env)) {
+                    Value returned = body.exec(env);
+                    if (returned != null) {
+                        return returned;
+                    }
+                }
+                return null;
+            };
+        } else if (stmt instanceof Stmt.ForIn) {
+            return forIn((Stmt.ForIn) stmt, scope);
+        } else if (stmt instanceof Stmt.Function) {
+            return function((Stmt.Function) stmt);
+        } else if (stmt instanceof Stmt.Return) {
+            Expr value = ((Stmt.Return) stmt).value;
+            if (value == null) {
+                return env -> EMPTY;
+            }
+            return expr(value, scope)::eval;
+        } else if (stmt instanceof Stmt.Import) {
+            // Modules imported from closure-compiled code are compiled too.
+            Stmt.Import module = (Stmt.Import) stmt;
+            return env -> {
+                String file = module.file != null ? module.file : Modules.resolve(module.path);
+                env.define(module.name, Modules.load(file, true));
+                return null;
+            };
+        }
+        // Anything else is run by the tree walker.
+        return env -> {
+            try {
+                stmt.execute(env);
+            } catch (Stmt.ReturnException returnException) {
+                return returnException.value;
+            }
+            return null;
+        };
+    }
+
+    private static Exec block(Stmt.Block block, Scope outer) {
+        Scope scope = new Scope(mayDefine(block.statements, new HashSet<>()), outer);
+        Exec[] statements = new Exec[block.statements.size()];
+        for (int i = 0; i < statements.length; i++) {
+            statements[i] = stmt(block.statements.get(i), scope);
+        }
+        Stmt[] sources = block.statements.toArray(new Stmt[0]);
+        Set<String> declared = block.declared;
+        return env -> {
+            Environment localEnv = new Environment(env, declared);
+            for (int i = 0; i < statements.length; i++) {
+                StatementTrace.record(sources[i]);
+                Value returned = statements[i].exec(localEnv);
+                if (returned != null) {
+                    return returned;
+                }
+            }
+            return null;
+        };
+    }
+
+    private static Exec forIn(Stmt.ForIn forIn, Scope outer) {
+        String name = forIn.name;
+        Eval iterable = expr(forIn.iterable, outer);
+        Set<String> names = new HashSet<>(Set.of(name));
+        if (!(forIn.body instanceof Stmt.Block)) {
+            names = mayDefine(List.of(forIn.body), names);
+        }
+        Exec body = stmt(forIn.body, new Scope(names, outer));
+        Set<String> declared = forIn.declared;
+        return env -> {
+            Value source = iterable.eval(env);
+            Environment loopEnv = new Environment(env, declared);
+            Environment.Binding slot = loopEnv.bind(name, EMPTY);
+            if (source.isArray()) {
+                List<Value> list = source.asArray();
+                for (int i = 0; i < list.size(); i++) {
+                    slot.value = list.get(i);
+                    Value returned = body.exec(loopEnv);
+                    if (returned != null) {
+                        return returned;
+                    }
+                }
+                return null;
+            } else if (source.isRange()) {
+                RangeValue range = source.asRange();
+                long count = range.size();
+                for (long i = 0; i < count; i++) {
+                    slot.value = range.valueAt(i);
+                    Value returned = body.exec(loopEnv);
+                    if (returned != null) {
+                        return returned;
+                    }
+                }
+                return null;
+            }
+            return CompiledScript.forEach(source, slot, loopEnv, body::exec);
+        };
+    }
+
+    private static Exec function(Stmt.Function function) {
+        String name = function.name;
+        List<String> parameters = function.parameters;
+        Set<String> freeVariables = FreeVariables.of(parameters, function.body);
+        // The parameters are defined in a scope of their own, below the closure.
+        Scope scope = new Scope(new HashSet<>(parameters), null);
+        Exec body = function.body instanceof Stmt.LazyBlock ? lazy(function.body, scope) : block(function.body, scope);
+        FunctionValue.Code code = localEnv -> {
+            Value returned = body.exec(localEnv);
+            return returned != null ? returned : EMPTY;
+        };
+        return env -> {
+            CompiledScript.declare(env, name, parameters, freeVariables, code);
+            return null;
+        };
+    }
+
+    // Compiles a lazily parsed body the first time it runs.
+    private static Exec lazy(Stmt.Block lazyBody, Scope scope) {
+        Exec[] compiled = new Exec[1];
+        return env -> {
+            Exec body = compiled[0];
+            if (body == null) {
+                body = block(lazyBody.parsed(), scope);
+                compiled[0] = body;
+            }
+            return body.exec(env);
+        };
+    }
+
+    // Adds the names the statements may define in the scope they run in, or
+    // returns null if one of them is a statement this does not know. Like
+    // Stmt.declaredNames, but imports count too.
+    private static Set<String> mayDefine(List<Stmt> statements, Set<String> names) {
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.Var) {
+                names.add(((Stmt.Var) stmt).name);
+            } else if (stmt instanceof Stmt.Function) {
+                names.add(((Stmt.Function) stmt).name);
+            } else if (stmt instanceof Stmt.Import) {
+                names.add(((Stmt.Import) stmt).name);
+            } else if (stmt instanceof Stmt.If) {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                if (!(ifStmt.thenBranch instanceof Stmt.Block)
+                        && mayDefine(List.of(ifStmt.thenBranch), names) == null) {
+                    return null;
+                }
+                if (ifStmt.elseBranch != null && !(ifStmt.elseBranch instanceof Stmt.Block)
+                        && mayDefine(List.of(ifStmt.elseBranch), names) == null) {
+                    return null;
+                }
+            } else if (stmt instanceof Stmt.While) {
+                Stmt body = ((Stmt.While) stmt).body;
+                if (!(body instanceof Stmt.Block) && mayDefine(List.of(body), names) == null) {
+                    return null;
+                }
+            } else if (!(stmt instanceof Stmt.Print || stmt instanceof Stmt.PrintUpper
+                    || stmt instanceof Stmt.Expression || stmt instanceof Stmt.Return
+                    || stmt instanceof Stmt.Block || stmt instanceof Stmt.ForIn)) {
+                return null;
+            }
+        }
+        return names;
+    }
+
+    // Compiles a condition so that comparisons and logical operators never
+    // box their result into a Value.
+    static Test test(Expr expr, Scope scope) {
+        if (expr instanceof Literal && ((Literal) expr).value.isBoolean()) {
+            boolean value = ((Literal) expr).value.asBoolean();
+            return env -> value;
+        } else if (expr instanceof Logical) {
+            Logical logical = (Logical) expr;
+            Test left = test(logical.left, scope);
+            Test right = test(logical.right, scope);
+            if (logical.operator.type == TokenType.OR) {
+                return env -> left.test(env) || right.test(env);
+            }
+            return env -> left.test(env) && right.test(env);
+        } else if (expr instanceof Unary && ((Unary) expr).operator.type == TokenType.BANG) {
+            Test operand = test(((Unary) expr).right, scope);
+            return env -> !operand.test(env);
+        } else if (expr instanceof Binary) {
+            Binary binary = (Binary) expr;
+            TokenType type = binary.operator.type;
+            Eval left = expr(binary.left, scope);
+            Eval right = expr(binary.right, scope);
+            switch (type) {
+                case LESS:
+                case LESS_EQUAL:
+                case GREATER:
+                case GREATER_EQUAL:
+                    return env -> {
+                        Value leftVal = left.eval(env);
+                        return Binary.compare(type, leftVal, right.eval(env));
+                    };
+                case EQUAL_EQUAL:
+                    return env -> {
+                        Value leftVal = left.eval(env);
+                        return Binary.equalsValue(leftVal, right.eval(env));
+                    };
+                case BANG_EQUAL:
+                    return env -> {
+                        Value leftVal = left.eval(env);
+                        return !Binary.equalsValue(leftVal, right.eval(env));
+                    };
+                default:
+                    break;
+            }
+        }
+        Eval value = expr(expr, scope);
+        return env -> value.eval(env).asBoolean();
+    }
+
+    static Eval expr(Expr expr, Scope scope) {
+        if (expr instanceof Literal) {
+            Value value = ((Literal) expr).value;
+            return env -> value;
+        } else if (expr instanceof Variable) {
+            return new Name(((Variable) expr).name, scope)::get;
+        } else if (expr instanceof Binary) {
+            return binary((Binary) expr, scope);
+        } else if (expr instanceof Logical) {
+            Test test = test(expr, scope);
+            return env -> Value.ofBoolean(test.test(env));
+        } else if (expr instanceof Unary) {
+            Unary unary = (Unary) expr;
+            switch (unary.operator.type) {
+                case MINUS: {
+                    Eval operand = expr(unary.right, scope);
+                    return env -> Unary.negate(operand.eval(env));
+                }
+                case BANG: {
+                    Test test = test(expr, scope);
+                    return env -> Value.ofBoolean(test.test(env));
+                }
+                case PLUS:
+                    return expr(unary.right, scope);
+                default:
+                    break;
+            }
+        } else if (expr instanceof ArrayLiteral) {
+            Eval[] elements = exprs(((ArrayLiteral) expr).elements, scope);
+            return env -> {
+                List<Value> list = new ArrayList<>(elements.length);
+                for (Eval element : elements) {
+                    list.add(element.eval(env));
+                }
+                return Value.ofArray(list);
+            };
+        } else if (expr instanceof ArrayAccess) {
+            Eval array = expr(((ArrayAccess) expr).arrayExpr, scope);
+            Eval index = expr(((ArrayAccess) expr).indexExpr, scope);
+            return env -> {
+                List<Value> list = ArrayAccess.elements(array.eval(env));
+                return ArrayAccess.get(list, index.eval(env));
+            };
+        } else if (expr instanceof DictionaryLiteral) {
+            Map<Expr, Expr> pairs = ((DictionaryLiteral) expr).pairs;
+            Eval[] keys = new Eval[pairs.size()];
+            Eval[] values = new Eval[pairs.size()];
+            int i = 0;
+            for (Map.Entry<Expr, Expr> entry : pairs.entrySet()) {
+                keys[i] = expr(entry.getKey(), scope);
+                values[i++] = expr(entry.getValue(), scope);
+            }
+            return env -> {
+                Map<Value, Value> dictionary = new HashMap<>();
+                for (int k = 0; k < keys.length; k++) {
+                    Value key = keys[k].eval(env);
+                    dictionary.put(key, values[k].eval(env));
+                }
+                return Value.ofDictionary(dictionary);
+            };
+        } else if (expr instanceof Get) {
+            Eval object = expr(((Get) expr).object, scope);
+            String name = ((Get) expr).name;
+            return env -> Get.member(object.eval(env), name);
+        } else if (expr instanceof Call) {
+            return call((Call) expr, scope);
+        } else if (expr instanceof NativeCall && !((NativeCall) expr).function.usesScope()) {
+            return nativeCall((NativeCall) expr, scope);
+        }
+        // Anything else is evaluated by the tree walker.
+        return expr::evaluate;
+    }
+
+    private static Eval[] exprs(List<Expr> expressions, Scope scope) {
+        Eval[] compiled = new Eval[expressions.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = expr(expressions.get(i), scope);
+        }
+        return compiled;
+    }
+
+    private static Eval binary(Binary binary, Scope scope) {
+        Eval left = expr(binary.left, scope);
+        Eval right = expr(binary.right, scope);
+        switch (binary.operator.type) {
+            case PLUS:
+                return env -> {
+                    Value leftVal = left.eval(env);
+                    return Binary.add(leftVal, right.eval(env));
+                };
+            case MINUS:
+                return env -> {
+                    Value leftVal = left.eval(env);
+                    return Binary.subtract(leftVal, right.eval(env));
+                };
+            case STAR:
+                return env -> {
+                    Value leftVal = left.eval(env);
+                    return Binary.multiply(leftVal, right.eval(env));
+                };
+            case SLASH:
+                return env -> {
+                    Value leftVal = left.eval(env);
+                    return Binary.divide(leftVal, right.eval(env));
+                };
+            default:
+                Test test = test(binary, scope);
+                return env -> Value.ofBoolean(test.test(env));
+        }
+    }
+
+    private static Eval call(Call call, Scope scope) {
+        Eval callee = expr(call.callee, scope);
+        Eval[] arguments = exprs(call.arguments, scope);
+        int count = arguments.length;
+        return env -> {
+            FunctionValue function = Call.function(callee.eval(env), count);
+            if (function.builtin != null) {
+                Value[] values = new Value[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = arguments[i].eval(env);
+                }
+                return function.builtin.callInScope(env, values);
+            }
+            Environment localEnv = new Environment(function.closure);
+            for (int i = 0; i < count; i++) {
+                localEnv.define(function.parameters.get(i), arguments[i].eval(env));
+            }
+            return function.invoke(env, localEnv);
+        };
+    }
+
+    private static Eval nativeCall(NativeCall call, Scope scope) {
+        NativeFunction function = call.function;
+        Eval[] arguments = exprs(call.arguments, scope);
+        switch (arguments.length) {
+            case 0:
+                return env -> function.call0();
+            case 1: {
+                Eval a = arguments[0];
+                return env -> function.call1(a.eval(env));
+            }
+            case 2: {
+                Eval a = arguments[0];
+                Eval b = arguments[1];
+                return env -> {
+                    Value first = a.eval(env);
+                    return function.call2(first, b.eval(env));
+                };
+            }
+            case 3: {
+                Eval a = arguments[0];
+                Eval b = arguments[1];
+                Eval c = arguments[2];
+                return env -> {
+                    Value first = a.eval(env);
+                    Value second = b.eval(env);
+                    return function.call3(first, second, c.eval(env));
+                };
+            }
+            default:
+                return env -> {
+                    Value[] values = new Value[arguments.length];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = arguments[i].eval(env);
+                    }
+                    return function.call(values);
+                };
+        }
+    }
+}
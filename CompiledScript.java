@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Base class of the classes generated by ScriptCompiler. It holds the small
+// runtime the generated code calls into; everything else is done with the
+// same Value, Environment and operator code the interpreter uses. The
+// closure engine shares the function and loop helpers.
+public abstract class CompiledScript {
+    // One top-level statement, compiled to a static method.
+    public interface Statement {
+        void execute(Environment env);
+    }
+
+    // Runs top-level statements in the global scope. As in the interpreter,
+    // an error only abandons the statement it occurs in.
+    protected static void run(Environment globals, Statement... statements) {
+        for (Statement statement : statements) {
+            try {
+                statement.execute(globals);
+            } catch (RuntimeException e) {
+                System.err.println("Execution Error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Declares a compiled function, capturing its scope like Stmt.Function.
+    protected static void declare(Environment env, String name, List<String> parameters,
+                                  Set<String> freeVariables, FunctionValue.Code code) {
+        Environment closure = env;
+        if (freeVariables != null) {
+            env.define(name, Value.ofText(""));
+            closure = env.capture(freeVariables);
+        }
+        env.define(name, Value.ofFunction(new FunctionValue(name, parameters, code, closure)));
+    }
+
+    // Calls a function already checked by Call.function.
+    protected static Value invoke(Environment caller, FunctionValue function, Value... arguments) {
+        if (function.builtin != null) {
+            return function.builtin.callInScope(caller, arguments);
+        }
+        Environment localEnv = new Environment(function.closure);
+        for (int i = 0; i < arguments.length; i++) {
+            localEnv.define(function.parameters.get(i), arguments[i]);
+        }
+        return function.invoke(caller, localEnv);
+    }
+
+    // Runs a loop body over anything other than an array or range, which the
+    // generated code walks itself. Returns the value of a return statement in
+    // the body, or null if the loop ran to completion.
+    protected static Value forEach(Value source, Environment.Binding slot, Environment loopEnv,
+                                   FunctionValue.Code body) {
+        Value[] returned = new Value[1];
+        Pipeline.forEach(source, value -> {
+            slot.value = value;
+            returned[0] = body.run(loopEnv);
+            return returned[0] == null;
+        });
+        return returned[0];
+    }
+
+    protected static Value array(Value... elements) {
+        return Value.ofArray(new ArrayList<>(Arrays.asList(elements)));
+    }
+
+    // Keys and values alternate.
+    protected static Value dictionary(Value... pairs) {
+        Map<Value, Value> dictionary = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            dictionary.put(pairs[i], pairs[i + 1]);
+        }
+        return Value.ofDictionary(dictionary);
+    }
+
+    // Evaluates an expression statement for its side effects only.
+    protected static void ignore(Value value) {
+    }
+}
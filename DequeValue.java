@@ -0,0 +1,33 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// A mutable double-ended queue: a circular array, so pushing and popping at
+// either end are O(1), where removing the first element of a list shifts
+// all the others. Two deques are equal when they hold equal elements in the
+// same order.
+public class DequeValue extends ArrayDeque<Value> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DequeValue)) return false;
+        DequeValue other = (DequeValue) o;
+        if (size() != other.size()) return false;
+        Iterator<Value> a = iterator();
+        Iterator<Value> b = other.iterator();
+        while (a.hasNext()) {
+            if (!a.next().equals(b.next())) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (Value value : this) {
+            hash = 31 * hash + value.hashCode();
+        }
+        return hash;
+    }
+}
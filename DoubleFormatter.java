@@ -0,0 +1,64 @@
+// Formats doubles the way scripts print them, appending straight into a
+// StringBuilder instead of going through intermediate Strings. Whole numbers
+// that fit a long print without a fraction. Other values in the
+// plain-notation range of Double.toString get the shortest fraction that
+// reads back as the same double; anything else falls back to
+// Double.toString.
+public final class DoubleFormatter {
+    private static final double[] POW10 = new double[18];
+    private static final long[] LONG_POW10 = new long[18];
+    // Above this, scaled values can no longer be held exactly in a double.
+    private static final double EXACT_LIMIT = 9007199254740992.0;
+    // Whole numbers from here on do not fit a long; they would print as
+    // Long.MAX_VALUE, so they use Double.toString instead.
+    private static final double LONG_LIMIT = 9223372036854775808.0;
+
+    static {
+        long power = 1;
+        for (int i = 0; i < POW10.length; i++) {
+            LONG_POW10[i] = power;
+            POW10[i] = power;
+            power *= 10;
+        }
+    }
+
+    private DoubleFormatter() {
+    }
+
+    public static String toString(double d) {
+        StringBuilder sb = new StringBuilder(24);
+        append(sb, d);
+        return sb.toString();
+    }
+
+    public static void append(StringBuilder sb, double d) {
+        if (d % 1.0 == 0.0 && Math.abs(d) < LONG_LIMIT) {
+            sb.append((long) d);
+            return;
+        }
+        double abs = Math.abs(d);
+        if (abs >= 1e-3 && abs < 1e7) {
+            for (int k = 1; k < POW10.length; k++) {
+                double scaled = abs * POW10[k];
+                if (scaled >= EXACT_LIMIT) {
+                    break;
+                }
+                long digits = (long) Math.rint(scaled);
+                if (digits / POW10[k] == abs) {
+                    if (d < 0) {
+                        sb.append('-');
+                    }
+                    long whole = digits / LONG_POW10[k];
+                    long fraction = digits - whole * LONG_POW10[k];
+                    sb.append(whole).append('.');
+                    for (long p = LONG_POW10[k - 1]; p > fraction && p > 1; p /= 10) {
+                        sb.append('0');
+                    }
+                    sb.append(fraction);
+                    return;
+                }
+            }
+        }
+        sb.append(d);
+    }
+}
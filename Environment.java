@@ -1,38 +1,169 @@
+import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
-public class Environment {
-    private final Map<String, Value> values = new HashMap<>();
+public class Environment implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // A mutable slot holding one variable. Closures share the slot rather than
+    // the whole scope, so assignments stay visible on both sides.
+    static final class Binding implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Value value;
+
+        Binding(Value value) {
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Binding> values = new HashMap<>();
     private final Environment parent;
+    // Names the statements of the block this scope belongs to may define in
+    // it, or null if there are none; see Stmt.declaredNames.
+    private final Set<String> declared;
 
     public Environment() {
-        this.parent = null;
+        this(null, null);
     }
 
     public Environment(Environment parent) {
+        this(parent, null);
+    }
+
+    public Environment(Environment parent, Set<String> declared) {
         this.parent = parent;
+        this.declared = declared;
     }
 
     public void define(String name, Value value) {
-        values.put(name, value);
+        checkWritable(name);
+        Binding binding = values.get(name);
+        if (binding != null) {
+            binding.value = value;
+        } else {
+            values.put(name, new Binding(value));
+        }
     }
 
     public Value get(String name) {
-        if (values.containsKey(name)) {
-            return values.get(name);
-        } else if (parent != null) {
-            return parent.get(name);
+        Binding binding = lookup(name);
+        if (binding == null) {
+            // A built-in function named where no variable is, e.g. passed to
+            // map, is a function value like any other.
+            NativeFunction builtin = NativeFunction.lookup(name);
+            if (builtin != null) {
+                return builtin.value();
+            }
+            throw new RuntimeException("Undefined variable: " + name);
         }
-        throw new RuntimeException("Undefined variable: " + name);
+        return binding.value;
     }
 
     public void assign(String name, Value value) {
-        if (values.containsKey(name)) {
-            values.put(name, value);
-        } else if (parent != null) {
-            parent.assign(name, value);
-        } else {
-            throw new RuntimeException("Undefined variable: " + name);
+        for (Environment env = this; env != null; env = env.parent) {
+            Binding binding = env.values.get(name);
+            if (binding != null) {
+                env.checkWritable(name);
+                binding.value = value;
+                return;
+            }
+        }
+        throw new RuntimeException("Undefined variable: " + name);
+    }
+
+    // Assigns the variable wherever it is visible, or defines it in this
+    // scope if it is not; this is what `name = value` does.
+    public void set(String name, Value value) {
+        for (Environment env = this; env != null; env = env.parent) {
+            Binding binding = env.values.get(name);
+            if (binding != null) {
+                env.checkWritable(name);
+                binding.value = value;
+                return;
+            }
+        }
+        checkWritable(name);
+        values.put(name, new Binding(value));
+    }
+
+    // Chunks of one process_file call run at the same time, so a chunk that
+    // assigned to a variable in the scopes they share would race with the
+    // others.
+    private void checkWritable(String name) {
+        Thread current = Thread.currentThread();
+        if (current instanceof FileIO.ChunkThread && ((FileIO.ChunkThread) current).shares(this)) {
+            throw new RuntimeException("process_file: chunk_fn cannot assign to '" + name
+                    + "', which all chunks share; return it and combine it in merge_fn.");
+        }
+    }
+
+    // Defines a variable in this scope and returns its slot, so a caller that
+    // updates it repeatedly (a loop variable) can skip the name lookup.
+    Binding bind(String name, Value value) {
+        define(name, value);
+        return values.get(name);
+    }
+
+    // The variables defined directly in this scope, for tools that walk it.
+    Map<String, Binding> bindings() {
+        return values;
+    }
+
+    Environment parent() {
+        return parent;
+    }
+
+    // The slot of a variable defined directly in this scope, or null.
+    Binding local(String name) {
+        return values.get(name);
+    }
+
+    // Stores into a slot that local returned for this scope.
+    void write(Binding binding, String name, Value value) {
+        checkWritable(name);
+        binding.value = value;
+    }
+
+    Binding lookup(String name) {
+        for (Environment env = this; env != null; env = env.parent) {
+            Binding binding = env.values.get(name);
+            if (binding != null) {
+                return binding;
+            }
+        }
+        return null;
+    }
+
+    // Builds a flat, single-level scope holding only the given names, sharing
+    // their slots with this scope chain. The result hangs directly off the
+    // global scope, so a closure no longer keeps every enclosing block alive.
+    // A name that an enclosing block declares but has not defined yet (a
+    // function declared further down, say) can only be found when the
+    // closure runs, so then the whole chain is kept instead.
+    public Environment capture(Collection<String> names) {
+        Environment global = this;
+        while (global.parent != null) {
+            global = global.parent;
+        }
+        if (global == this) {
+            return this;
+        }
+        Environment captured = new Environment(global);
+        for (String name : names) {
+            for (Environment env = this; env != global; env = env.parent) {
+                Binding binding = env.values.get(name);
+                if (binding != null) {
+                    captured.values.put(name, binding);
+                    break;
+                }
+                if (env.declared != null && env.declared.contains(name)) {
+                    return this;
+                }
+            }
         }
+        return captured;
     }
 }
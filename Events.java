@@ -0,0 +1,178 @@
+import java.util.HashSet;
+import java.util.Set;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Java Flight Recorder events for interpreter activity, so scripts show up
+// in the same recordings as the rest of the JVM. They cost next to nothing
+// unless a recording enables them, e.g.
+//   java -XX:StartFlightRecording=filename=run.jfr Interpreter script.txt
+// Function calls are only recorded when they take longer than the Call
+// threshold, which a recording can change with interpreter.Call#threshold.
+// The begin/end helpers do nothing while no recording is running.
+public final class Events {
+    // Whether any recording is running, kept up to date by a listener as
+    // recordings start and stop, at launch or later through jcmd. Asking the
+    // recorder takes a lock, which is too much for a check made on every
+    // function call.
+    private static volatile boolean recording;
+    private static final Set<Long> running = new HashSet<>();
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            // Recordings started before this listener was added.
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                for (Recording r : recorder.getRecordings()) {
+                    recordingStateChanged(r);
+                }
+            }
+
+            @Override
+            public void recordingStateChanged(Recording r) {
+                synchronized (running) {
+                    if (r.getState() == RecordingState.RUNNING) {
+                        running.add(r.getId());
+                    } else {
+                        running.remove(r.getId());
+                    }
+                    recording = !running.isEmpty();
+                }
+            }
+        });
+    }
+
+    private Events() {
+    }
+
+    static Lex beginLex() {
+        if (!recording) {
+            return null;
+        }
+        Lex event = new Lex();
+        event.begin();
+        return event;
+    }
+
+    static void endLex(Lex event, int sourceLength, int tokens) {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.sourceLength = sourceLength;
+                event.tokens = tokens;
+                event.commit();
+            }
+        }
+    }
+
+    static Parse beginParse() {
+        if (!recording) {
+            return null;
+        }
+        Parse event = new Parse();
+        event.begin();
+        return event;
+    }
+
+    static void endParse(Parse event, int tokens, int statements) {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.tokens = tokens;
+                event.statements = statements;
+                event.commit();
+            }
+        }
+    }
+
+    static Execute beginExecute() {
+        if (!recording) {
+            return null;
+        }
+        Execute event = new Execute();
+        event.begin();
+        return event;
+    }
+
+    static void endExecute(Execute event, String script, String engine, int statements, int errors) {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.script = script;
+                event.engine = engine;
+                event.statements = statements;
+                event.errors = errors;
+                event.commit();
+            }
+        }
+    }
+
+    static boolean recordingCalls() {
+        return recording;
+    }
+
+    @Name("interpreter.Lex")
+    @Label("Lex")
+    @Category("Interpreter")
+    @StackTrace(false)
+    public static class Lex extends Event {
+        @Label("Source Length")
+        public int sourceLength;
+
+        @Label("Tokens")
+        public int tokens;
+    }
+
+    @Name("interpreter.Parse")
+    @Label("Parse")
+    @Category("Interpreter")
+    @StackTrace(false)
+    public static class Parse extends Event {
+        @Label("Tokens")
+        public int tokens;
+
+        @Label("Statements")
+        public int statements;
+    }
+
+    @Name("interpreter.Execute")
+    @Label("Execute Script")
+    @Category("Interpreter")
+    @StackTrace(false)
+    public static class Execute extends Event {
+        @Label("Script")
+        public String script;
+
+        @Label("Engine")
+        public String engine;
+
+        @Label("Statements")
+        public int statements;
+
+        @Label("Errors")
+        public int errors;
+    }
+
+    @Name("interpreter.Call")
+    @Label("Function Call")
+    @Description("A call to a script function that took longer than the threshold")
+    @Category("Interpreter")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class Call extends Event {
+        @Label("Function")
+        public String function;
+
+        @Label("Arguments")
+        public int arguments;
+    }
+}
@@ -1,13 +1,24 @@
+import java.io.Serializable;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 
-public abstract class Expr {
+public abstract class Expr implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public abstract Value evaluate(Environment env);
+
+    // Evaluates a condition. Nodes that produce booleans override this so
+    // that if/while tests and logical operators do not allocate a Value.
+    public boolean isTrue(Environment env) {
+        return evaluate(env).asBoolean();
+    }
 }
 
 class Binary extends Expr {
+    private static final long serialVersionUID = 1L;
+
     final Expr left;
     final Token operator;
     final Expr right;
@@ -24,45 +35,127 @@ class Binary extends Expr {
         Value rightVal = right.evaluate(env);
         switch (operator.type) {
             case PLUS:
-                if (leftVal.isText() || rightVal.isText()) {
-                    String leftText = leftVal.isText() ? leftVal.asText() : leftVal.toString();
-                    String rightText = rightVal.isText() ? rightVal.asText() : rightVal.toString();
-                    return Value.ofText(leftText + rightText);
-                } else if (leftVal.isNumber() && rightVal.isNumber()) {
-                    return Value.ofNumber(leftVal.asNumber() + rightVal.asNumber());
-                }
-                throw new RuntimeException("Operator + cannot be applied to " + leftVal + " and " + rightVal);
+                return add(leftVal, rightVal);
             case MINUS:
-                return Value.ofNumber(leftVal.asNumber() - rightVal.asNumber());
+                return subtract(leftVal, rightVal);
             case STAR:
-                return Value.ofNumber(leftVal.asNumber() * rightVal.asNumber());
+                return multiply(leftVal, rightVal);
             case SLASH:
-                return Value.ofNumber(leftVal.asNumber() / rightVal.asNumber());
+                return divide(leftVal, rightVal);
             case LESS:
-                return Value.ofBoolean(leftVal.asNumber() < rightVal.asNumber());
             case LESS_EQUAL:
-                return Value.ofBoolean(leftVal.asNumber() <= rightVal.asNumber());
             case GREATER:
-                return Value.ofBoolean(leftVal.asNumber() > rightVal.asNumber());
             case GREATER_EQUAL:
-                return Value.ofBoolean(leftVal.asNumber() >= rightVal.asNumber());
+                return Value.ofBoolean(compare(operator.type, leftVal, rightVal));
             case EQUAL_EQUAL:
                 return Value.ofBoolean(equalsValue(leftVal, rightVal));
             case BANG_EQUAL:
                 return Value.ofBoolean(!equalsValue(leftVal, rightVal));
-            case AND:
-                return Value.ofBoolean(leftVal.asBoolean() && rightVal.asBoolean());
-            case OR:
-                return Value.ofBoolean(leftVal.asBoolean() || rightVal.asBoolean());
             default:
                 throw new RuntimeException("Unknown operator: " + operator.type);
         }
     }
 
-    private boolean equalsValue(Value a, Value b) {
+    // The operators are static so that compiled scripts can call them
+    // directly instead of going through a Binary node.
+    static Value add(Value leftVal, Value rightVal) {
+        if (leftVal.isText() || rightVal.isText()) {
+            StringBuilder sb = new StringBuilder();
+            leftVal.appendTo(sb);
+            rightVal.appendTo(sb);
+            return Value.ofText(sb.toString());
+        } else if (leftVal.isInteger() && rightVal.isInteger()) {
+            long a = leftVal.asLong();
+            long b = rightVal.asLong();
+            long sum = a + b;
+            if (((a ^ sum) & (b ^ sum)) < 0) {
+                return Value.ofNumber((double) a + b);
+            }
+            return Value.ofInteger(sum);
+        } else if (leftVal.isNumber() && rightVal.isNumber()) {
+            return Value.ofNumber(leftVal.asNumber() + rightVal.asNumber());
+        }
+        throw new RuntimeException("Operator + cannot be applied to " + leftVal + " and " + rightVal);
+    }
+
+    static Value subtract(Value leftVal, Value rightVal) {
+        if (leftVal.isInteger() && rightVal.isInteger()) {
+            long a = leftVal.asLong();
+            long b = rightVal.asLong();
+            long difference = a - b;
+            if (((a ^ b) & (a ^ difference)) < 0) {
+                return Value.ofNumber((double) a - b);
+            }
+            return Value.ofInteger(difference);
+        }
+        return Value.ofNumber(leftVal.asNumber() - rightVal.asNumber());
+    }
+
+    static Value multiply(Value leftVal, Value rightVal) {
+        if (leftVal.isInteger() && rightVal.isInteger()) {
+            long a = leftVal.asLong();
+            long b = rightVal.asLong();
+            long product = a * b;
+            if (Math.multiplyHigh(a, b) != (product >> 63)) {
+                return Value.ofNumber((double) a * b);
+            }
+            return Value.ofInteger(product);
+        }
+        return Value.ofNumber(leftVal.asNumber() * rightVal.asNumber());
+    }
+
+    // Division always produces a double, even for two integers.
+    static Value divide(Value leftVal, Value rightVal) {
+        return Value.ofNumber(leftVal.asNumber() / rightVal.asNumber());
+    }
+
+    @Override
+    public boolean isTrue(Environment env) {
+        switch (operator.type) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                Value leftVal = left.evaluate(env);
+                return compare(operator.type, leftVal, right.evaluate(env));
+            case EQUAL_EQUAL:
+                return equalsValue(left.evaluate(env), right.evaluate(env));
+            case BANG_EQUAL:
+                return !equalsValue(left.evaluate(env), right.evaluate(env));
+            default:
+                return super.isTrue(env);
+        }
+    }
+
+    // Integers are compared exactly as longs; anything else as doubles.
+    static boolean compare(TokenType type, Value a, Value b) {
+        if (a.isInteger() && b.isInteger()) {
+            long x = a.asLong();
+            long y = b.asLong();
+            switch (type) {
+                case LESS: return x < y;
+                case LESS_EQUAL: return x <= y;
+                case GREATER: return x > y;
+                default: return x >= y;
+            }
+        }
+        double x = a.asNumber();
+        double y = b.asNumber();
+        switch (type) {
+            case LESS: return x < y;
+            case LESS_EQUAL: return x <= y;
+            case GREATER: return x > y;
+            default: return x >= y;
+        }
+    }
+
+    static boolean equalsValue(Value a, Value b) {
         if (a.isBoolean() && b.isBoolean()) {
             return a.asBoolean() == b.asBoolean();
         }
+        if (a.isInteger() && b.isInteger()) {
+            return a.asLong() == b.asLong();
+        }
         if (a.isNumber() && b.isNumber()) {
             return a.asNumber() == b.asNumber();
         }
@@ -72,11 +165,18 @@ class Binary extends Expr {
         if (a.isArray() && b.isArray()) {
             return a.asArray().equals(b.asArray());
         }
+        if (a.isPVector() || a.isPDict() || a.isSet() || a.isDeque() || a.isHeap() || a.isSortedDict()) {
+            // Same type and equal elements; the order only matters for vectors
+            // and deques.
+            return a.equals(b);
+        }
         return false;
     }
 }
 
 class Unary extends Expr {
+    private static final long serialVersionUID = 1L;
+
     final Token operator;
     final Expr right;
 
@@ -90,7 +190,7 @@ class Unary extends Expr {
         Value val = right.evaluate(env);
         switch (operator.type) {
             case MINUS:
-                return Value.ofNumber(-val.asNumber());
+                return negate(val);
             case PLUS:
                 return val;
             case BANG:
@@ -99,9 +199,55 @@ class Unary extends Expr {
                 throw new RuntimeException("Unknown unary operator: " + operator.type);
         }
     }
+
+    static Value negate(Value val) {
+        if (val.isInteger() && val.asLong() != Long.MIN_VALUE) {
+            return Value.ofInteger(-val.asLong());
+        }
+        return Value.ofNumber(-val.asNumber());
+    }
+
+    @Override
+    public boolean isTrue(Environment env) {
+        if (operator.type == TokenType.BANG) {
+            return !right.isTrue(env);
+        }
+        return super.isTrue(env);
+    }
+}
+
+// Logical and/or. Unlike Binary, the right operand is only evaluated when
+// the left one does not already decide the result.
+class Logical extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    final Expr left;
+    final Token operator;
+    final Expr right;
+
+    public Logical(Expr left, Token operator, Expr right) {
+        this.left = left;
+        this.operator = operator;
+        this.right = right;
+    }
+
+    @Override
+    public Value evaluate(Environment env) {
+        return Value.ofBoolean(isTrue(env));
+    }
+
+    @Override
+    public boolean isTrue(Environment env) {
+        if (operator.type == TokenType.OR) {
+            return left.isTrue(env) || right.isTrue(env);
+        }
+        return left.isTrue(env) && right.isTrue(env);
+    }
 }
 
 class Literal extends Expr {
+    private static final long serialVersionUID = 1L;
+
     final Value value;
 
     public Literal(Value value) {
@@ -112,9 +258,16 @@ class Literal extends Expr {
     public Value evaluate(Environment env) {
         return value;
     }
+
+    @Override
+    public boolean isTrue(Environment env) {
+        return value.asBoolean();
+    }
 }
 
 class Variable extends Expr {
+    private static final long serialVersionUID = 1L;
+
     final String name;
 
     public Variable(String name) {
@@ -128,6 +281,8 @@ class Variable extends Expr {
 }
 
 class ArrayLiteral extends Expr {
+    private static final long serialVersionUID = 1L;
+
     final List<Expr> elements;
 
     public ArrayLiteral(List<Expr> elements) {
@@ -145,6 +300,8 @@ class ArrayLiteral extends Expr {
 }
 
 class ArrayAccess extends Expr {
+    private static final long serialVersionUID = 1L;
+
     final Expr arrayExpr;
     final Expr indexExpr;
 
@@ -155,133 +312,153 @@ class ArrayAccess extends Expr {
 
     @Override
     public Value evaluate(Environment env) {
-        Value arrayVal = arrayExpr.evaluate(env);
+        List<Value> list = elements(arrayExpr.evaluate(env));
+        return get(list, indexExpr.evaluate(env));
+    }
+
+    static List<Value> elements(Value arrayVal) {
+        if (arrayVal.isPVector()) {
+            return arrayVal.asPVector();
+        }
         if (!arrayVal.isArray()) {
             throw new RuntimeException("Attempted to index a non-array value.");
         }
-        Value indexVal = indexExpr.evaluate(env);
-        int index = (int) indexVal.asNumber();
-        List<Value> list = arrayVal.asArray();
+        return arrayVal.asArray();
+    }
+
+    static Value get(List<Value> list, Value indexVal) {
+        long index = indexVal.asLong();
         if (index < 0 || index >= list.size()) {
             throw new RuntimeException("Array index out of bounds.");
         }
-        return list.get(index);
+        return list.get((int) index);
     }
 }
 
-class InputExpr extends Expr {
-    final Expr prompt;
+// Base of the direct-dispatch nodes for calls to a NativeFunction. The
+// subclasses for zero to three arguments evaluate them into locals and call
+// the matching fixed-arity entry point.
+abstract class NativeCall extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    final NativeFunction function;
+    final List<Expr> arguments;
 
-    public InputExpr(Expr prompt) {
-        this.prompt = prompt;
+    NativeCall(NativeFunction function, List<Expr> arguments) {
+        this.function = function;
+        this.arguments = arguments;
+    }
+}
+
+class NativeCall0 extends NativeCall {
+    private static final long serialVersionUID = 1L;
+
+    NativeCall0(NativeFunction function, List<Expr> arguments) {
+        super(function, arguments);
     }
 
     @Override
     public Value evaluate(Environment env) {
-        // For non-interactive testing, simply return an empty string.
-        return Value.ofText("");
+        return function.call0();
     }
 }
 
-// Built-in function to append an element to a list.
-class AppendExpr extends Expr {
-    final Expr listExpr;
-    final Expr elementExpr;
+class NativeCall1 extends NativeCall {
+    private static final long serialVersionUID = 1L;
+
+    private final Expr a;
 
-    public AppendExpr(Expr listExpr, Expr elementExpr) {
-        this.listExpr = listExpr;
-        this.elementExpr = elementExpr;
+    NativeCall1(NativeFunction function, List<Expr> arguments) {
+        super(function, arguments);
+        this.a = arguments.get(0);
     }
 
     @Override
     public Value evaluate(Environment env) {
-        Value listVal = listExpr.evaluate(env);
-        if (!listVal.isArray()) {
-            throw new RuntimeException("append expects first argument to be a list.");
-        }
-        Value elementVal = elementExpr.evaluate(env);
-        listVal.asArray().add(elementVal);
-        return listVal;
+        return function.call1(a.evaluate(env));
     }
 }
 
-// Built-in function to remove an element from a list.
-class RemoveExpr extends Expr {
-    final Expr listExpr;
-    final Expr indexExpr;
+class NativeCall2 extends NativeCall {
+    private static final long serialVersionUID = 1L;
 
-    public RemoveExpr(Expr listExpr, Expr indexExpr) {
-        this.listExpr = listExpr;
-        this.indexExpr = indexExpr;
+    private final Expr a;
+    private final Expr b;
+
+    NativeCall2(NativeFunction function, List<Expr> arguments) {
+        super(function, arguments);
+        this.a = arguments.get(0);
+        this.b = arguments.get(1);
     }
 
     @Override
     public Value evaluate(Environment env) {
-        Value listVal = listExpr.evaluate(env);
-        if (!listVal.isArray()) {
-            throw new RuntimeException("remove expects first argument to be a list.");
-        }
-        Value indexVal = indexExpr.evaluate(env);
-        int index = (int) indexVal.asNumber();
-        List<Value> list = listVal.asArray();
-        if (index < 0 || index >= list.size()) {
-            throw new RuntimeException("remove: index out of bounds.");
-        }
-        return Value.ofText(list.remove(index).toString());
+        Value first = a.evaluate(env);
+        return function.call2(first, b.evaluate(env));
     }
 }
 
-// Built-in function to put a key-value pair into a dictionary.
-class PutExpr extends Expr {
-    final Expr dictExpr;
-    final Expr keyExpr;
-    final Expr valueExpr;
+class NativeCall3 extends NativeCall {
+    private static final long serialVersionUID = 1L;
+
+    private final Expr a;
+    private final Expr b;
+    private final Expr c;
 
-    public PutExpr(Expr dictExpr, Expr keyExpr, Expr valueExpr) {
-        this.dictExpr = dictExpr;
-        this.keyExpr = keyExpr;
-        this.valueExpr = valueExpr;
+    NativeCall3(NativeFunction function, List<Expr> arguments) {
+        super(function, arguments);
+        this.a = arguments.get(0);
+        this.b = arguments.get(1);
+        this.c = arguments.get(2);
     }
 
     @Override
     public Value evaluate(Environment env) {
-        Value dictVal = dictExpr.evaluate(env);
-        if (!dictVal.isDictionary()) {
-            throw new RuntimeException("put expects first argument to be a dictionary.");
-        }
-        Value keyVal = keyExpr.evaluate(env);
-        Value valueVal = valueExpr.evaluate(env);
-        dictVal.asDictionary().put(keyVal, valueVal);
-        return dictVal;
+        Value first = a.evaluate(env);
+        Value second = b.evaluate(env);
+        return function.call3(first, second, c.evaluate(env));
     }
 }
 
-// Built-in function to remove a key from a dictionary.
-class DictRemoveExpr extends Expr {
-    final Expr dictExpr;
-    final Expr keyExpr;
+class NativeCallN extends NativeCall {
+    private static final long serialVersionUID = 1L;
 
-    public DictRemoveExpr(Expr dictExpr, Expr keyExpr) {
-        this.dictExpr = dictExpr;
-        this.keyExpr = keyExpr;
+    NativeCallN(NativeFunction function, List<Expr> arguments) {
+        super(function, arguments);
     }
 
     @Override
     public Value evaluate(Environment env) {
-        Value dictVal = dictExpr.evaluate(env);
-        if (!dictVal.isDictionary()) {
-            throw new RuntimeException("dict_remove expects first argument to be a dictionary.");
+        Value[] values = new Value[arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arguments.get(i).evaluate(env);
         }
-        Value keyVal = keyExpr.evaluate(env);
-        if (!dictVal.asDictionary().containsKey(keyVal)) {
-            throw new RuntimeException("dict_remove: key not found.");
+        return function.call(values);
+    }
+}
+
+// A call to a NativeFunction that is passed the caller's scope.
+class ScopedNativeCall extends NativeCall {
+    private static final long serialVersionUID = 1L;
+
+    ScopedNativeCall(NativeFunction function, List<Expr> arguments) {
+        super(function, arguments);
+    }
+
+    @Override
+    public Value evaluate(Environment env) {
+        Value[] values = new Value[arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arguments.get(i).evaluate(env);
         }
-        return dictVal.asDictionary().remove(keyVal);
+        return function.callInScope(env, values);
     }
 }
 
 // Function call expression.
 class Call extends Expr {
+    private static final long serialVersionUID = 1L;
+
     final Expr callee;
     final List<Expr> arguments;
 
@@ -292,30 +469,65 @@ class Call extends Expr {
 
     @Override
     public Value evaluate(Environment env) {
-        Value function = callee.evaluate(env);
-        if (!function.isFunction()) {
-            throw new RuntimeException("Attempted to call a non-function.");
-        }
-        FunctionValue func = function.asFunction();
-        if (arguments.size() != func.parameters.size()) {
-            throw new RuntimeException("Expected " + func.parameters.size() + " arguments but got " + arguments.size());
+        FunctionValue func = function(callee.evaluate(env), arguments.size());
+        if (func.builtin != null) {
+            Value[] values = new Value[arguments.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = arguments.get(i).evaluate(env);
+            }
+            return func.builtin.callInScope(env, values);
         }
         Environment localEnv = new Environment(func.closure);
         for (int i = 0; i < func.parameters.size(); i++) {
             Value argVal = arguments.get(i).evaluate(env);
             localEnv.define(func.parameters.get(i), argVal);
         }
-        try {
-            func.body.execute(localEnv);
-        } catch (Stmt.ReturnException returnException) {
-            return returnException.value;
+        return func.invoke(env, localEnv);
+    }
+
+    // Checks that a callee is a function taking the given number of
+    // arguments, before any of them are evaluated.
+    static FunctionValue function(Value function, int argumentCount) {
+        if (!function.isFunction()) {
+            throw new RuntimeException("Attempted to call a non-function.");
+        }
+        FunctionValue func = function.asFunction();
+        if (!func.accepts(argumentCount)) {
+            throw new RuntimeException(func.arityMessage(argumentCount));
+        }
+        return func;
+    }
+}
+
+// Member of a module: `name.member`.
+class Get extends Expr {
+    private static final long serialVersionUID = 1L;
+
+    final Expr object;
+    final String name;
+
+    public Get(Expr object, String name) {
+        this.object = object;
+        this.name = name;
+    }
+
+    @Override
+    public Value evaluate(Environment env) {
+        return member(object.evaluate(env), name);
+    }
+
+    static Value member(Value object, String name) {
+        if (!object.isModule()) {
+            throw new RuntimeException("Only modules have members; cannot read " + name + ".");
         }
-        return Value.ofText("");
+        return object.asModule().get(name);
     }
 }
 
 // Make DictionaryLiteral public so that Parser.java can see it.
 class DictionaryLiteral extends Expr {
+    private static final long serialVersionUID = 1L;
+
     final Map<Expr, Expr> pairs;
 
     public DictionaryLiteral(Map<Expr, Expr> pairs) {
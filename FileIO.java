@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Built-in functions for reading and writing files.
+class FileIO {
+    private static final long MIN_CHUNK = 1024 * 1024;
+
+    static void registerAll() {
+        // A lazy, single-pass iterator over the lines of a file.
+        NativeFunction.register("open_lines", "path",
+                path -> Value.ofIterator(new MappedLines(path.asText())));
+
+        NativeFunction.register("read_file", "path", path -> {
+            try {
+                return Value.ofText(Files.readString(Path.of(path.asText()), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot read " + path + ": " + e.getMessage());
+            }
+        });
+
+        // Splits a file into line-aligned chunks, runs chunk_fn on the lines of
+        // each chunk in parallel, and folds the partial results with merge_fn.
+        NativeFunction.register("process_file", "path, chunk_fn, merge_fn",
+                (path, chunkFn, mergeFn) -> processFile(path.asText(), chunkFn.asFunction(), mergeFn.asFunction()));
+
+        NativeFunction.register("write_file", "path, text",
+                (path, text) -> write(path, text, StandardOpenOption.TRUNCATE_EXISTING));
+        NativeFunction.register("append_file", "path, text",
+                (path, text) -> write(path, text, StandardOpenOption.APPEND));
+
+        // A file kept open across writes, for output built up a piece at a
+        // time. open_writer(path, true) appends to the file.
+        NativeFunction.register("open_writer", 1, 2, "path, append",
+                args -> Value.ofWriter(new WriterValue(args[0].asText(), args.length > 1 && args[1].asBoolean())));
+        NativeFunction.register("write", "writer, text", (writer, text) -> {
+            writer.asWriter().write(text.toString());
+            return Value.ofText("");
+        });
+        NativeFunction.register("close", "writer", writer -> {
+            writer.asWriter().close();
+            return Value.ofText("");
+        });
+    }
+
+    // A worker thread of process_file. The scopes chunk_fn was defined in,
+    // out to the globals, are read-only to it (see Environment.checkWritable),
+    // so chunks cannot race on them.
+    static final class ChunkThread extends Thread {
+        private final Environment[] shared;
+
+        ChunkThread(Runnable runnable, Environment[] shared) {
+            super(runnable, "process_file");
+            this.shared = shared;
+            setDaemon(true);
+        }
+
+        boolean shares(Environment env) {
+            for (Environment scope : shared) {
+                if (scope == env) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Each chunk_fn call gets its own scope, so per-chunk dictionaries and
+    // accumulators need no locking. Assigning to a variable in the scopes
+    // chunk_fn was defined in, such as a global, is an error when there is
+    // more than one chunk.
+    static Value processFile(String path, FunctionValue chunkFn, FunctionValue mergeFn) {
+        long[] bounds = chunkBounds(path);
+        int chunks = bounds.length - 1;
+        if (chunks <= 1) {
+            return callChunk(chunkFn, path, 0, bounds[chunks], new AtomicBoolean());
+        }
+        List<Environment> scopes = new ArrayList<>();
+        for (Environment scope = chunkFn.closure; scope != null; scope = scope.parent()) {
+            scopes.add(scope);
+        }
+        Environment[] shared = scopes.toArray(new Environment[0]);
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(chunks, Runtime.getRuntime().availableProcessors()),
+                runnable -> new ChunkThread(runnable, shared));
+        // Set once the result is known or has failed. Script code does not
+        // check for interrupts, so running chunks stop at their next line.
+        AtomicBoolean cancelled = new AtomicBoolean();
+        try {
+            List<Future<Value>> partials = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                long from = bounds[i];
+                long to = bounds[i + 1];
+                partials.add(pool.submit(() -> callChunk(chunkFn, path, from, to, cancelled)));
+            }
+            // Merge in file order, as soon as each partial result is ready.
+            Value result = partials.get(0).get();
+            for (int i = 1; i < chunks; i++) {
+                result = mergeFn.call(result, partials.get(i).get());
+            }
+            return result;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("process_file: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("process_file interrupted.");
+        } finally {
+            cancelled.set(true);
+            pool.shutdownNow();
+        }
+    }
+
+    // The chunk's file is closed once chunk_fn returns, even if it stopped
+    // reading early or failed.
+    private static Value callChunk(FunctionValue chunkFn, String path, long from, long to,
+            AtomicBoolean cancelled) {
+        if (cancelled.get()) {
+            throw new RuntimeException("process_file cancelled.");
+        }
+        try (MappedLines lines = new MappedLines(path, from, to)) {
+            return chunkFn.call(Value.ofIterator(new Iterator<Value>() {
+                @Override
+                public boolean hasNext() {
+                    if (cancelled.get()) {
+                        throw new RuntimeException("process_file cancelled.");
+                    }
+                    return lines.hasNext();
+                }
+
+                @Override
+                public Value next() {
+                    return lines.next();
+                }
+            }));
+        }
+    }
+
+    // Returns chunk boundaries 0 = b0 < b1 < ... < bn = size, each one just
+    // past a newline so no line is split between two chunks.
+    private static long[] chunkBounds(String path) {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int target = (int) Math.max(1, Math.min(size / MIN_CHUNK,
+                    Runtime.getRuntime().availableProcessors() * 4L));
+            long[] bounds = new long[target + 1];
+            int count = 1;
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            for (int i = 1; i < target; i++) {
+                long position = Math.max(size * i / target, bounds[count - 1]);
+                long boundary = nextLineStart(channel, position, buffer);
+                if (boundary > bounds[count - 1] && boundary < size) {
+                    bounds[count++] = boundary;
+                }
+            }
+            bounds[count++] = size;
+            return Arrays.copyOf(bounds, count);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    // The whole text is written at once, so it needs no buffer of its own;
+    // a script writing piece by piece uses open_writer instead.
+    private static Value write(Value path, Value text, StandardOpenOption mode) {
+        try {
+            Files.writeString(Path.of(path.asText()), text.toString(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write " + path + ": " + e.getMessage());
+        }
+        return Value.ofText("");
+    }
+}
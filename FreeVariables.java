@@ -0,0 +1,127 @@
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Collects the names a function body may refer to outside its own parameters.
+// The result is a superset of the truly free variables: names that are only
+// ever assigned locally are included too, which is harmless since capturing
+// a name that has no enclosing binding is a no-op.
+public class FreeVariables {
+    private final Set<String> names = new HashSet<>();
+    private boolean complete = true;
+
+    // Returns null when the body contains a node the analysis does not know,
+    // in which case the caller must keep the full defining scope.
+    public static Set<String> of(List<String> parameters, Stmt.Block body) {
+        if (body instanceof Stmt.LazyBlock) {
+            // Not parsed yet: every identifier in it will do.
+            Set<String> names = ((Stmt.LazyBlock) body).identifiers();
+            names.removeAll(parameters);
+            return names;
+        }
+        FreeVariables analysis = new FreeVariables();
+        analysis.stmt(body);
+        if (!analysis.complete) {
+            return null;
+        }
+        analysis.names.removeAll(parameters);
+        return analysis.names;
+    }
+
+    private void stmts(List<Stmt> statements) {
+        for (Stmt stmt : statements) {
+            stmt(stmt);
+        }
+    }
+
+    private void stmt(Stmt stmt) {
+        if (stmt == null) {
+            return;
+        }
+        if (stmt instanceof Stmt.Print) {
+            expr(((Stmt.Print) stmt).expression);
+        } else if (stmt instanceof Stmt.PrintUpper) {
+            expr(((Stmt.PrintUpper) stmt).expression);
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            names.add(var.name);
+            expr(var.expression);
+        } else if (stmt instanceof Stmt.Expression) {
+            expr(((Stmt.Expression) stmt).expression);
+        } else if (stmt instanceof Stmt.Block) {
+            stmts(((Stmt.Block) stmt).statements);
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            expr(ifStmt.condition);
+            stmt(ifStmt.thenBranch);
+            stmt(ifStmt.elseBranch);
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While whileStmt = (Stmt.While) stmt;
+            expr(whileStmt.condition);
+            stmt(whileStmt.body);
+        } else if (stmt instanceof Stmt.ForIn) {
+            Stmt.ForIn forIn = (Stmt.ForIn) stmt;
+            names.add(forIn.name);
+            expr(forIn.iterable);
+            stmt(forIn.body);
+        } else if (stmt instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) stmt;
+            names.add(function.name);
+            Set<String> inner = of(function.parameters, function.body);
+            if (inner == null) {
+                complete = false;
+            } else {
+                names.addAll(inner);
+            }
+        } else if (stmt instanceof Stmt.Import) {
+            names.add(((Stmt.Import) stmt).name);
+        } else if (stmt instanceof Stmt.Return) {
+            expr(((Stmt.Return) stmt).value);
+        } else {
+            complete = false;
+        }
+    }
+
+    private void exprs(List<Expr> expressions) {
+        for (Expr expr : expressions) {
+            expr(expr);
+        }
+    }
+
+    private void expr(Expr expr) {
+        if (expr == null || expr instanceof Literal) {
+            return;
+        }
+        if (expr instanceof Variable) {
+            names.add(((Variable) expr).name);
+        } else if (expr instanceof Binary) {
+            expr(((Binary) expr).left);
+            expr(((Binary) expr).right);
+        } else if (expr instanceof Logical) {
+            expr(((Logical) expr).left);
+            expr(((Logical) expr).right);
+        } else if (expr instanceof Unary) {
+            expr(((Unary) expr).right);
+        } else if (expr instanceof ArrayLiteral) {
+            exprs(((ArrayLiteral) expr).elements);
+        } else if (expr instanceof ArrayAccess) {
+            expr(((ArrayAccess) expr).arrayExpr);
+            expr(((ArrayAccess) expr).indexExpr);
+        } else if (expr instanceof DictionaryLiteral) {
+            for (Map.Entry<Expr, Expr> entry : ((DictionaryLiteral) expr).pairs.entrySet()) {
+                expr(entry.getKey());
+                expr(entry.getValue());
+            }
+        } else if (expr instanceof Get) {
+            expr(((Get) expr).object);
+        } else if (expr instanceof Call) {
+            expr(((Call) expr).callee);
+            exprs(((Call) expr).arguments);
+        } else if (expr instanceof NativeCall) {
+            exprs(((NativeCall) expr).arguments);
+        } else {
+            complete = false;
+        }
+    }
+}
@@ -1,14 +1,183 @@
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.List;
 
-public class FunctionValue {
+public class FunctionValue implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // The body of a function compiled to a JVM method; it runs in a scope
+    // that already holds the parameters and returns the function's result.
+    public interface Code {
+        Value run(Environment localEnv);
+    }
+
+    // The calls running on each thread, innermost last, with the scope each
+    // was made from: the innermost live scope of the frame below it, so a
+    // heap report sees the variables of every active frame. Calls made by
+    // built-ins such as map have no such scope.
+    private static final ThreadLocal<Frames> FRAMES = ThreadLocal.withInitial(Frames::new);
+    // The stack used last, which saves the thread-local lookup on every call
+    // while one thread runs the script. Its thread is checked before use.
+    private static Frames lastFrames;
+
+    static final class Frames {
+        private final Thread thread = Thread.currentThread();
+        private FunctionValue[] functions = new FunctionValue[32];
+        private Environment[] scopes = new Environment[32];
+        private int depth = 0;
+
+        private void push(FunctionValue function, Environment scope) {
+            if (depth == scopes.length) {
+                functions = Arrays.copyOf(functions, depth * 2);
+                scopes = Arrays.copyOf(scopes, depth * 2);
+            }
+            functions[depth] = function;
+            scopes[depth++] = scope;
+        }
+
+        private void pop() {
+            depth--;
+            functions[depth] = null;
+            scopes[depth] = null;
+        }
+
+        int depth() {
+            return depth;
+        }
+
+        String name(int i) {
+            return functions[i].name;
+        }
+
+        // The scope call i was made from, or null.
+        Environment scope(int i) {
+            return scopes[i];
+        }
+    }
+
+    static Frames frames() {
+        Frames frames = lastFrames;
+        if (frames == null || frames.thread != Thread.currentThread()) {
+            frames = FRAMES.get();
+            lastFrames = frames;
+        }
+        return frames;
+    }
+
+    public final String name;
     public final List<String> parameters;
     public final Stmt.Block body;
     public final Environment closure;
+    // Set instead of body for compiled functions, which cannot be stored in
+    // a snapshot.
+    final transient Code code;
+    // Set instead of body for a built-in function used as a value, as in
+    // map(xs, size); it is called directly rather than in a new scope.
+    final NativeFunction builtin;
+
+    public FunctionValue(String name, List<String> parameters, Stmt.Block body, Environment closure) {
+        this(name, parameters, body, closure, null);
+    }
+
+    public FunctionValue(String name, List<String> parameters, Code code, Environment closure) {
+        this(name, parameters, null, closure, code);
+    }
 
-    public FunctionValue(List<String> parameters, Stmt.Block body, Environment closure) {
+    private FunctionValue(String name, List<String> parameters, Stmt.Block body, Environment closure, Code code) {
+        this.name = name;
         this.parameters = parameters;
         this.body = body;
         this.closure = closure;
+        this.code = code;
+        this.builtin = null;
+    }
+
+    FunctionValue(NativeFunction builtin) {
+        this.name = builtin.name;
+        this.parameters = List.of();
+        this.body = null;
+        this.closure = null;
+        this.code = null;
+        this.builtin = builtin;
+    }
+
+    boolean accepts(int count) {
+        return builtin != null ? builtin.accepts(count) : count == parameters.size();
+    }
+
+    String arityMessage(int count) {
+        if (builtin != null) {
+            return builtin.arityMessage();
+        }
+        return "Expected " + parameters.size() + " arguments but got " + count;
+    }
+
+    // Calls the function with already evaluated arguments. Used by native
+    // code such as pipelines, which would otherwise have to build Call nodes.
+    public Value call(Value... arguments) {
+        if (!accepts(arguments.length)) {
+            throw new RuntimeException(arityMessage(arguments.length));
+        }
+        if (builtin != null) {
+            return builtin.call(arguments);
+        }
+        Environment localEnv = new Environment(closure);
+        for (int i = 0; i < arguments.length; i++) {
+            localEnv.define(parameters.get(i), arguments[i]);
+        }
+        return invoke(null, localEnv);
+    }
+
+    // Runs the body in a scope that already holds the parameters, for a call
+    // made from the scope caller.
+    Value invoke(Environment caller, Environment localEnv) {
+        Frames frames = frames();
+        frames.push(this, caller);
+        try {
+            if (Events.recordingCalls()) {
+                return invokeRecorded(localEnv);
+            }
+            return run(localEnv);
+        } finally {
+            frames.pop();
+        }
+    }
+
+    private Value invokeRecorded(Environment localEnv) {
+        Events.Call event = new Events.Call();
+        event.begin();
+        try {
+            return run(localEnv);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.function = name;
+                event.arguments = parameters.size();
+                event.commit();
+            }
+        }
+    }
+
+    private Value run(Environment localEnv) {
+        if (code != null) {
+            return code.run(localEnv);
+        }
+        try {
+            body.execute(localEnv);
+        } catch (Stmt.ReturnException returnException) {
+            return returnException.value;
+        }
+        return Value.ofText("");
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (code != null) {
+            throw new NotSerializableException("compiled function");
+        }
+        out.defaultWriteObject();
     }
 
     @Override
@@ -12,9 +12,11 @@ import java.io.File;
 
 public class GUI2 extends JFrame {
     private JTextArea outputArea;
-    private JTextArea inputArea;
+    private JTextPane inputArea;
     private JButton submitButton;
     private JButton closeButton;
+    private JCheckBox sessionCheckBox;
+    private final Session session = new Session();
 
     public GUI2() {
         super("Interpreter GUI v2");
@@ -27,10 +29,17 @@ public class GUI2 extends JFrame {
 
         // Redirect System.out and System.err to the outputArea.
         redirectSystemStreams();
+        // There is no console to type into, so input() sees an empty stream
+        // instead of blocking the event thread.
+        System.setIn(new ByteArrayInputStream(new byte[0]));
 
         // Create the multi-line input area.
-        inputArea = new JTextArea(10, 50);
+        // The input area is a styled pane so the code can be highlighted.
+        inputArea = new JTextPane();
+        inputArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        new SyntaxHighlighter(inputArea.getStyledDocument());
         JScrollPane inputScrollPane = new JScrollPane(inputArea);
+        inputScrollPane.setPreferredSize(new Dimension(560, 180));
         inputScrollPane.setBorder(BorderFactory.createTitledBorder("Input"));
 
         // Add drag-and-drop support to the inputArea.
@@ -77,6 +86,13 @@ public class GUI2 extends JFrame {
                 if (code.trim().isEmpty()) {
                     return;  // Nothing to process if input is empty.
                 }
+                if (sessionCheckBox.isSelected()) {
+                    // Keep the code in the input area so it can be edited and
+                    // resubmitted; only new or changed statements will run.
+                    int count = session.submit(code);
+                    System.out.println("[session: ran " + count + " new or edited statement(s)]");
+                    return;
+                }
                 System.out.println("Submitted code:\n\n" + code);
                 // Process the code through your interpreter.
                 interpret(code);
@@ -85,6 +101,17 @@ public class GUI2 extends JFrame {
             }
         });
 
+        // Create the Session check box and the button that resets it.
+        sessionCheckBox = new JCheckBox("Session");
+        sessionCheckBox.setToolTipText("Keep variables between submissions and only run new or edited statements");
+        JButton resetButton = new JButton("Reset Session");
+        resetButton.addActionListener(new ActionListener(){
+            public void actionPerformed(ActionEvent e) {
+                session.reset();
+                System.out.println("[session reset]");
+            }
+        });
+
         // Create the Clear button to clear the output area.
         JButton clearButton = new JButton("Clear");
         clearButton.addActionListener(new ActionListener(){
@@ -103,6 +130,8 @@ public class GUI2 extends JFrame {
 
         // Panel to hold the buttons.
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(sessionCheckBox);
+        buttonPanel.add(resetButton);
         buttonPanel.add(submitButton);
         buttonPanel.add(clearButton);  // Added Clear button
         buttonPanel.add(closeButton);
@@ -0,0 +1,340 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// Summarizes what a program's variables keep alive: every value reachable
+// from a scope chain (the calling frame, any enclosing scopes and the
+// globals) and from the frames of the function calls still running on the
+// thread, through collections and function closures. Objects are
+// visited once by identity, so shared and self-containing lists are counted
+// once. Sizes are estimates of the shallow JVM size of each object on a
+// 64-bit VM with compressed pointers, summed over everything reachable.
+public class HeapReport {
+    private static final int TOP = 10;
+
+    private static final long VALUE = 64;
+    private static final long BOXED_DOUBLE = 16;
+    private static final long STRING = 24;
+    private static final long ARRAY_HEADER = 16;
+    private static final long ARRAY_LIST = 24;
+    private static final long HASH_MAP = 48;
+    private static final long MAP_ENTRY = 32;
+    private static final long ENVIRONMENT = 16;
+    private static final long BINDING = 16;
+    private static final long FUNCTION = 32;
+    private static final long RANGE = 48;
+    private static final long OPAQUE = 32;
+    private static final long PERSISTENT = 24;
+    private static final long LINKED_ENTRY = 40;
+    private static final long ARRAY_DEQUE = 24;
+    private static final long HEAP = 40;
+    private static final long TREE_MAP = 48;
+    private static final long TREE_ENTRY = 40;
+
+    // A container still to be walked, and how it was reached.
+    private static final class Node {
+        final Object target;
+        final Node parent;
+        final String key;
+
+        Node(Object target, Node parent, String key) {
+            this.target = target;
+            this.parent = parent;
+            this.key = key;
+        }
+
+        String path() {
+            if (parent == null) {
+                return key;
+            }
+            String prefix = parent.path();
+            return prefix.isEmpty() || key.startsWith("[") ? prefix + key : prefix + "." + key;
+        }
+    }
+
+    // A reachable collection.
+    private static final class Collection {
+        final String path;
+        final int size;
+        final long bytes;
+        final List<String> aliases = new ArrayList<>();
+
+        Collection(String path, int size, long bytes) {
+            this.path = path;
+            this.size = size;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Map<Object, Collection> collections = new IdentityHashMap<>();
+    private final Map<Object, Boolean> visited = new IdentityHashMap<>();
+    private final ArrayDeque<Node> pending = new ArrayDeque<>();
+    private final Map<Value.ValueType, long[]> types = new EnumMap<>(Value.ValueType.class);
+    private long scopes = 0;
+    private long scopeBytes = 0;
+    private long texts = 0;
+    private long textChars = 0;
+    private long textBytes = 0;
+
+    // Builds the report for everything reachable from the scope chain and
+    // the active calls. A caller's variables are named after its function,
+    // as in f().big, unless the scope chain reaches them first.
+    public static String of(Environment scope) {
+        HeapReport report = new HeapReport();
+        for (Environment env = scope; env != null; env = env.parent()) {
+            report.pending.add(new Node(env, null, ""));
+        }
+        // Call i was made from inside call i - 1, or from the top level.
+        FunctionValue.Frames frames = FunctionValue.frames();
+        for (int i = frames.depth() - 1; i >= 0; i--) {
+            if (frames.scope(i) != null) {
+                report.pending.add(new Node(frames.scope(i), null, i > 0 ? frames.name(i - 1) + "()" : ""));
+            }
+        }
+        report.walk();
+        return report.format();
+    }
+
+    private void walk() {
+        while (!pending.isEmpty()) {
+            Node node = pending.poll();
+            Object target = node.target;
+            if (target instanceof Environment) {
+                walkScope((Environment) target, node);
+            } else if (target instanceof List) {
+                @SuppressWarnings("unchecked")
+                List<Value> list = (List<Value>) target;
+                for (int i = 0; i < list.size(); i++) {
+                    value(list.get(i), node, "[" + i + "]");
+                }
+            } else if (target instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<Value, Value> map = (Map<Value, Value>) target;
+                for (Map.Entry<Value, Value> entry : map.entrySet()) {
+                    value(entry.getKey(), node, "<key>");
+                    value(entry.getValue(), node, "[" + entry.getKey() + "]");
+                }
+            } else if (target instanceof Iterable) {
+                @SuppressWarnings("unchecked")
+                Iterable<Value> values = (Iterable<Value>) target;
+                for (Value value : values) {
+                    value(value, node, "<element>");
+                }
+            }
+        }
+    }
+
+    private void walkScope(Environment env, Node node) {
+        if (visited.put(env, Boolean.TRUE) != null) {
+            return;
+        }
+        if (env.parent() != null) {
+            // A closure that kept its whole defining scope chain.
+            pending.add(new Node(env.parent(), node.parent, node.key));
+        }
+        Map<String, Environment.Binding> bindings = env.bindings();
+        scopes++;
+        scopeBytes += ENVIRONMENT + hashMap(bindings.size()) + BINDING * bindings.size();
+        for (Map.Entry<String, Environment.Binding> binding : bindings.entrySet()) {
+            value(binding.getValue().value, node, binding.getKey());
+        }
+    }
+
+    // Counts a value the first time it is seen and queues what it contains.
+    private void value(Value value, Node from, String key) {
+        if (value == null) {
+            return;
+        }
+        Object payload = payload(value);
+        Collection collection = payload != null ? collections.get(payload) : null;
+        if (collection != null && collection.aliases.size() < 3) {
+            String path = new Node(payload, from, key).path();
+            if (!path.equals(collection.path) && !collection.aliases.contains(path)) {
+                collection.aliases.add(path);
+            }
+        }
+        if (visited.put(value, Boolean.TRUE) != null) {
+            return;
+        }
+        long bytes = VALUE;
+        switch (value.getType()) {
+            case NUMBER:
+                if (!value.isInteger()) {
+                    bytes += BOXED_DOUBLE;
+                }
+                break;
+            case TEXT:
+                long size = string(value.asText());
+                texts++;
+                textChars += value.asText().length();
+                textBytes += size;
+                bytes += size;
+                break;
+            case ARRAY:
+            case DICTIONARY:
+            case PVECTOR:
+            case PDICT:
+            case SET:
+            case DEQUE:
+            case HEAP:
+            case SORTED_DICT:
+                if (visited.put(payload, Boolean.TRUE) == null) {
+                    int count = payload instanceof Map ? ((Map<?, ?>) payload).size()
+                            : ((java.util.Collection<?>) payload).size();
+                    long shallow = shallow(value.getType(), count);
+                    bytes += shallow;
+                    Node node = new Node(payload, from, key);
+                    collections.put(payload, new Collection(node.path(), count, shallow));
+                    pending.add(node);
+                }
+                break;
+            case FUNCTION:
+                FunctionValue function = value.asFunction();
+                if (visited.put(function, Boolean.TRUE) == null) {
+                    bytes += FUNCTION;
+                    // Built-in functions have no closure.
+                    if (function.closure != null) {
+                        pending.add(new Node(function.closure, from, key));
+                    }
+                }
+                break;
+            case RANGE:
+                bytes += RANGE;
+                break;
+            case MODULE:
+                Module module = value.asModule();
+                if (visited.put(module, Boolean.TRUE) == null) {
+                    bytes += OPAQUE;
+                    pending.add(new Node(module.globals, from, key));
+                }
+                break;
+            case BOOLEAN:
+                break;
+            default:
+                bytes += OPAQUE;
+                break;
+        }
+        long[] totals = types.computeIfAbsent(value.getType(), t -> new long[2]);
+        totals[0]++;
+        totals[1] += bytes;
+    }
+
+    private static Object payload(Value value) {
+        if (value.isArray()) {
+            return value.asArray();
+        }
+        if (value.isDictionary()) {
+            return value.asDictionary();
+        }
+        if (value.isPVector()) {
+            return value.asPVector();
+        }
+        if (value.isPDict()) {
+            return value.asPDict();
+        }
+        if (value.isSet()) {
+            return value.asSet();
+        }
+        if (value.isDeque()) {
+            return value.asDeque();
+        }
+        if (value.isHeap()) {
+            return value.asHeap();
+        }
+        if (value.isSortedDict()) {
+            return value.asSortedDict();
+        }
+        return null;
+    }
+
+    // Persistent collections are counted in full for every version, though
+    // versions share most of their nodes.
+    private static long shallow(Value.ValueType type, int count) {
+        switch (type) {
+            case ARRAY:
+                return arrayList(count);
+            case PVECTOR:
+                return PERSISTENT + align(ARRAY_HEADER + 4L * count) * 33 / 32;
+            case PDICT:
+                return PERSISTENT + align(ARRAY_HEADER + 8L * count) + align(ARRAY_HEADER * (count / 4 + 1));
+            case SET:
+                return hashMap(count) + LINKED_ENTRY * count;
+            case DEQUE:
+                return ARRAY_DEQUE + align(ARRAY_HEADER + 4L * Integer.highestOneBit(count * 2 + 1));
+            case SORTED_DICT:
+                return TREE_MAP + TREE_ENTRY * count;
+            case HEAP:
+                return HEAP + 2 * align(ARRAY_HEADER + 4L * count) + align(ARRAY_HEADER + 8L * count);
+            default:
+                return hashMap(count) + MAP_ENTRY * count;
+        }
+    }
+
+    private static long string(String s) {
+        boolean latin1 = true;
+        for (int i = 0; i < s.length() && latin1; i++) {
+            latin1 = s.charAt(i) < 256;
+        }
+        return STRING + align(ARRAY_HEADER + (long) s.length() * (latin1 ? 1 : 2));
+    }
+
+    private static long arrayList(int size) {
+        return ARRAY_LIST + align(ARRAY_HEADER + 4L * size);
+    }
+
+    private static long hashMap(int size) {
+        int table = Integer.highestOneBit(Math.max(1, (int) (size / 0.75f)) * 2 - 1);
+        return HASH_MAP + align(ARRAY_HEADER + 4L * table);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private String format() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Heap report (estimated bytes)\n");
+        sb.append(String.format("  %-12s %12s %14s%n", "type", "count", "bytes"));
+        long count = 0;
+        long bytes = 0;
+        for (Map.Entry<Value.ValueType, long[]> entry : types.entrySet()) {
+            long[] totals = entry.getValue();
+            sb.append(String.format("  %-12s %12d %14d%n", entry.getKey(), totals[0], totals[1]));
+            count += totals[0];
+            bytes += totals[1];
+        }
+        sb.append(String.format("  %-12s %12d %14d%n", "(scopes)", scopes, scopeBytes));
+        sb.append(String.format("  %-12s %12d %14d%n", "total", count + scopes, bytes + scopeBytes));
+        appendLargest(sb, "arrays", payload -> payload instanceof List);
+        appendLargest(sb, "dictionaries", payload -> payload instanceof Map);
+        appendLargest(sb, "sets, deques and heaps", payload -> !(payload instanceof List || payload instanceof Map));
+        sb.append(String.format("Text: %d strings, %d characters, %d bytes", texts, textChars, textBytes));
+        return sb.toString();
+    }
+
+    private void appendLargest(StringBuilder sb, String title, Predicate<Object> kind) {
+        List<Collection> largest = new ArrayList<>();
+        for (Map.Entry<Object, Collection> entry : collections.entrySet()) {
+            if (kind.test(entry.getKey())) {
+                largest.add(entry.getValue());
+            }
+        }
+        if (largest.isEmpty()) {
+            return;
+        }
+        largest.sort((a, b) -> Integer.compare(b.size, a.size));
+        sb.append("Largest ").append(title).append(":\n");
+        for (Collection collection : largest.subList(0, Math.min(TOP, largest.size()))) {
+            sb.append(String.format("  %10d elements %12d bytes  %s", collection.size, collection.bytes,
+                    collection.path));
+            if (!collection.aliases.isEmpty()) {
+                sb.append(" (also ").append(String.join(", ", collection.aliases)).append(')');
+            }
+            sb.append('\n');
+        }
+    }
+}
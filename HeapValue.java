@@ -0,0 +1,163 @@
+import java.io.Serializable;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// A mutable priority queue: a binary min-heap, so pushing and popping are
+// O(log n) and peeking is O(1). Elements are ordered by Value.compare, or
+// by what a key function returns for them; the key is computed once, when
+// an element is pushed, and kept next to it. Elements with equal keys come
+// out in the order they went in. Iterating, printing and comparing a heap
+// go through its elements in the order they would be popped.
+public class HeapValue extends AbstractQueue<Value> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final FunctionValue key;
+    private Value[] values = new Value[16];
+    private Value[] keys = values;
+    private long[] order = new long[16];
+    private int count = 0;
+    private long pushed = 0;
+
+    public HeapValue(FunctionValue key) {
+        this.key = key;
+        if (key != null) {
+            keys = new Value[values.length];
+        }
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public boolean offer(Value value) {
+        Value k = key != null ? key.call(value) : value;
+        // Fails here, before the heap changes, if the key cannot be ordered
+        // against the keys already in it.
+        if (count > 0) {
+            Value.compare(k, keys[0]);
+        } else {
+            Value.requireOrdered(k);
+        }
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+            keys = key != null ? Arrays.copyOf(keys, count * 2) : values;
+            order = Arrays.copyOf(order, count * 2);
+        }
+        // Sift up: move parents down until the new element fits.
+        long seq = pushed++;
+        int i = count++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(k, seq, keys[parent], order[parent]) >= 0) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        set(i, value, k, seq);
+        return true;
+    }
+
+    @Override
+    public Value peek() {
+        return count == 0 ? null : values[0];
+    }
+
+    @Override
+    public Value poll() {
+        if (count == 0) {
+            return null;
+        }
+        Value top = values[0];
+        int last = --count;
+        Value value = values[last];
+        Value k = keys[last];
+        long seq = order[last];
+        values[last] = null;
+        keys[last] = null;
+        // Sift down: move the smaller child up until the last element fits.
+        int i = 0;
+        int half = count >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < count && compare(keys[right], order[right], keys[child], order[child]) < 0) {
+                child = right;
+            }
+            if (compare(k, seq, keys[child], order[child]) <= 0) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        if (count > 0) {
+            set(i, value, k, seq);
+        }
+        return top;
+    }
+
+    // A scan of the heap's array, which needs no sorting.
+    @Override
+    public boolean contains(Object o) {
+        for (int i = 0; i < count; i++) {
+            if (values[i].equals(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int compare(Value a, long aOrder, Value b, long bOrder) {
+        int c = Value.compare(a, b);
+        return c != 0 ? c : Long.compare(aOrder, bOrder);
+    }
+
+    private void move(int from, int to) {
+        values[to] = values[from];
+        keys[to] = keys[from];
+        order[to] = order[from];
+    }
+
+    private void set(int i, Value value, Value k, long seq) {
+        values[i] = value;
+        keys[i] = k;
+        order[i] = seq;
+    }
+
+    // The elements in the order they would be popped, from a copy of the
+    // heap, so the key function is not called again.
+    public List<Value> sorted() {
+        HeapValue copy = new HeapValue(null);
+        copy.values = Arrays.copyOf(values, Math.max(count, 1));
+        copy.keys = key != null ? Arrays.copyOf(keys, copy.values.length) : copy.values;
+        copy.order = Arrays.copyOf(order, copy.values.length);
+        copy.count = count;
+        List<Value> sorted = new ArrayList<>(count);
+        while (!copy.isEmpty()) {
+            sorted.add(copy.poll());
+        }
+        return sorted;
+    }
+
+    @Override
+    public Iterator<Value> iterator() {
+        return sorted().iterator();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HeapValue)) return false;
+        return sorted().equals(((HeapValue) o).sorted());
+    }
+
+    @Override
+    public int hashCode() {
+        return sorted().hashCode();
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.Arrays;
+
+// Keeps the token stream of an editable document up to date. After an edit
+// it restarts the lexer at the last token that ends strictly before the
+// edit, and stops as soon as it produces a token identical to an old one
+// past the edit; from there on the old tokens are still valid, only shifted.
+// Tokens are stored in parallel arrays to keep large documents compact.
+public class IncrementalLexer {
+    private int[] starts = new int[256];
+    private int[] ends = new int[256];
+    private TokenType[] types = new TokenType[256];
+    private int count = 0;
+
+    public int size() {
+        return count;
+    }
+
+    public int start(int index) {
+        return starts[index];
+    }
+
+    public int end(int index) {
+        return ends[index];
+    }
+
+    public TokenType type(int index) {
+        return types[index];
+    }
+
+    // Index of the first token that ends after the given offset.
+    public int indexAt(int offset) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Lexes the whole text from scratch.
+    public void reset(CharSequence text) {
+        count = 0;
+        Lexer lexer = new Lexer(text, 0);
+        lexer.setReportErrors(false);
+        for (Token token = lexer.nextToken(); token != null; token = lexer.nextToken()) {
+            ensureCapacity(count + 1);
+            put(count++, token);
+        }
+    }
+
+    // Updates the tokens after `removed` characters at `offset` were replaced
+    // by `inserted` new ones; `text` is the document after the edit. Returns
+    // the {from, to} character range whose tokens changed.
+    public int[] update(CharSequence text, int offset, int removed, int inserted) {
+        int delta = inserted - removed;
+        int oldEditEnd = offset + removed;
+
+        // The lexer peeks one character past a token to decide where it ends,
+        // so a token ending exactly at the edit may change as well.
+        int first = indexAt(offset - 1);
+        int restart = first > 0 ? ends[first - 1] : 0;
+
+        // Old tokens from `next` on are candidates for resynchronizing.
+        int next = first;
+        while (next < count && starts[next] < oldEditEnd) {
+            next++;
+        }
+
+        Lexer lexer = new Lexer(text, restart);
+        lexer.setReportErrors(false);
+        Token[] fresh = new Token[16];
+        int freshCount = 0;
+        int resync = count;
+        for (Token token = lexer.nextToken(); token != null; token = lexer.nextToken()) {
+            while (next < count && starts[next] + delta < token.start) {
+                next++;
+            }
+            if (next < count && starts[next] + delta == token.start
+                    && ends[next] + delta == token.end && types[next] == token.type) {
+                resync = next;
+                break;
+            }
+            if (freshCount == fresh.length) {
+                fresh = Arrays.copyOf(fresh, freshCount * 2);
+            }
+            fresh[freshCount++] = token;
+        }
+
+        // Everything up to the resynchronized token, or the end of the text
+        // if the lexer never caught up, has to be redrawn.
+        int to = resync < count ? starts[resync] + delta : text.length();
+
+        // Replace tokens [first, resync) with the fresh ones and shift the rest.
+        int tail = count - resync;
+        int newCount = first + freshCount + tail;
+        ensureCapacity(newCount);
+        System.arraycopy(starts, resync, starts, first + freshCount, tail);
+        System.arraycopy(ends, resync, ends, first + freshCount, tail);
+        System.arraycopy(types, resync, types, first + freshCount, tail);
+        for (int i = 0; i < freshCount; i++) {
+            put(first + i, fresh[i]);
+        }
+        if (delta != 0) {
+            for (int i = first + freshCount; i < newCount; i++) {
+                starts[i] += delta;
+                ends[i] += delta;
+            }
+        }
+        count = newCount;
+
+        return new int[] { restart, to };
+    }
+
+    private void put(int index, Token token) {
+        starts[index] = token.start;
+        ends[index] = token.end;
+        types[index] = token.type;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > starts.length) {
+            int size = Math.max(capacity, starts.length * 2);
+            starts = Arrays.copyOf(starts, size);
+            ends = Arrays.copyOf(ends, size);
+            types = Arrays.copyOf(types, size);
+        }
+    }
+}
@@ -1,17 +1,67 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 
 public class Interpreter {
+    private static final String USAGE =
+            "Usage: java Interpreter [--restore <image>] [--snapshot <image>] [--compile <jar>]\n"
+            + "                        [--engine=tree|closure] [--heap-report] [--lazy | --check] [--quiet]\n"
+            + "                        <path-to-file>";
+
     public static void main(String[] args) {
-        if (args.length < 1) {
-            System.out.println("Usage: java Interpreter <path-to-file>");
+        String filePath = null;
+        String restoreImage = null;
+        String snapshotImage = null;
+        String compileJar = null;
+        boolean closureEngine = false;
+        boolean heapReport = false;
+        boolean lazy = false;
+        boolean check = false;
+        boolean quiet = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--restore") && i + 1 < args.length) {
+                restoreImage = args[++i];
+            } else if (args[i].equals("--snapshot") && i + 1 < args.length) {
+                snapshotImage = args[++i];
+            } else if (args[i].equals("--compile") && i + 1 < args.length) {
+                compileJar = args[++i];
+            } else if (args[i].equals("--engine=closure") || args[i].equals("--engine=tree")) {
+                closureEngine = args[i].equals("--engine=closure");
+            } else if (args[i].equals("--heap-report")) {
+                heapReport = true;
+            } else if (args[i].equals("--lazy")) {
+                lazy = true;
+            } else if (args[i].equals("--check")) {
+                check = true;
+            } else if (args[i].equals("--quiet")) {
+                quiet = true;
+            } else if (filePath == null && !args[i].startsWith("--")) {
+                filePath = args[i];
+            } else {
+                System.out.println(USAGE);
+                return;
+            }
+        }
+        if (filePath == null || (lazy && check)) {
+            System.out.println(USAGE);
             return;
         }
 
-        String filePath = args[0];
-        Environment globalEnv = new Environment();
+        // --restore starts from the globals of a previously saved prelude.
+        Environment globalEnv;
+        if (restoreImage != null) {
+            try {
+                globalEnv = Snapshot.load(restoreImage);
+            } catch (IOException e) {
+                System.err.println("Snapshot Error: " + e.getMessage());
+                return;
+            }
+        } else {
+            globalEnv = new Environment();
+        }
 
         StringBuilder sourceBuilder = new StringBuilder();
         try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
@@ -25,30 +75,129 @@ public class Interpreter {
         }
         String source = sourceBuilder.toString();
 
-        Lexer lexer = new Lexer(source);
-        List<Token> tokens = lexer.scanTokens();
-        for (Token token : tokens) {
-            System.out.println(token);
+        // Large sources are lexed in parallel.
+        List<Token> tokens = ParallelLexer.scan(source);
+        // Imports are relative to the script's own directory.
+        Path directory = Paths.get(filePath).toAbsolutePath().getParent();
+
+        // --compile writes the program to a runnable jar instead of running it.
+        if (compileJar != null) {
+            try {
+                List<Stmt> statements = new Parser(tokens).parseProgram();
+                Modules.bind(statements, directory, false);
+                ScriptCompiler.compile(statements, filePath, compileJar);
+                System.out.println("Compiled " + filePath + " to " + compileJar);
+            } catch (Parser.ParseException e) {
+                System.err.println("Parse Error: " + e.getMessage());
+            } catch (IOException e) {
+                System.err.println("Compile Error: " + e.getMessage());
+            }
+            return;
+        }
+
+        // --check parses every function body and reports the first error
+        // without running anything; the exit status tells a build or an
+        // editor hook whether there was one.
+        if (check) {
+            try {
+                new Parser(tokens).parseProgram();
+                System.out.println("No parse errors in " + filePath);
+            } catch (Parser.ParseException e) {
+                System.err.println("Parse Error: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
+
+        // --quiet leaves stdout to the script alone, so it can be a stage
+        // in a shell pipeline.
+        if (!quiet) {
+            for (Token token : tokens) {
+                System.out.println(token);
+            }
+            System.out.println("################    END OF ANALYSIS       ################");
+            System.out.println("V V V V V V V    OUTPUT OF INPUT COMMANDS      V V V V V V ");
+            System.out.println();
+        }
+
+        // --lazy parses a function body only when the function is first called.
+        int errors = run(tokens, source, globalEnv, closureEngine, lazy, directory, filePath);
+        if (errors < 0) {
+            exit(quiet);
+            return;
+        }
+
+        // --snapshot saves the resulting globals for a later --restore.
+        if (snapshotImage != null) {
+            try {
+                Snapshot.save(globalEnv, snapshotImage);
+            } catch (IOException e) {
+                System.err.println("Snapshot Error: " + e.getMessage());
+            }
+        }
+
+        // --heap-report describes what the globals keep alive at the end.
+        if (heapReport) {
+            System.err.println(HeapReport.of(globalEnv));
         }
-        System.out.println("################    END OF ANALYSIS       ################");
-        System.out.println("V V V V V V V    OUTPUT OF INPUT COMMANDS      V V V V V V ");
-        System.out.println();
 
-        Parser parser = new Parser(tokens);
+        if (errors > 0) {
+            exit(quiet);
+        }
+    }
+
+    // In a pipeline (--quiet) a parse error or failed statement has to show
+    // in the exit status.
+    private static void exit(boolean quiet) {
+        if (quiet) {
+            System.exit(1);
+        }
+    }
+
+    // Lexes, parses and runs a program in the given global scope without the
+    // token listing, for hosts such as the benchmark runner. Errors are
+    // reported as in main. Returns the number of statements that failed, or
+    // -1 if the program did not parse.
+    public static int run(String source, Environment globals, boolean closureEngine) {
+        return run(ParallelLexer.scan(source), source, globals, closureEngine, false,
+                Paths.get("").toAbsolutePath(), "<source>");
+    }
+
+    static int run(List<Token> tokens, CharSequence source, Environment globals, boolean closureEngine,
+                   boolean lazy, Path directory, String script) {
         List<Stmt> statements;
         try {
-            statements = parser.parseProgram();
+            statements = new Parser(tokens, lazy).parseProgram();
         } catch (Parser.ParseException e) {
             System.err.println("Parse Error: " + e.getMessage());
-            return;
+            return -1;
         }
+        Modules.bind(statements, directory, lazy);
+        return execute(statements, globals, closureEngine, source, script);
+    }
 
+    // Runs the top-level statements one by one; an error only abandons the
+    // statement it occurs in. Returns the number of failed statements.
+    static int execute(List<Stmt> statements, Environment globals, boolean closureEngine,
+                       CharSequence source, String script) {
+        // The closure engine compiles each statement to lambdas first.
+        if (closureEngine) {
+            statements = ClosureCompiler.compile(statements);
+        }
+        Events.Execute event = Events.beginExecute();
+        int errors = 0;
         for (Stmt stmt : statements) {
             try {
-                stmt.execute(globalEnv);
+                StatementTrace.record(stmt);
+                stmt.execute(globals);
             } catch (RuntimeException e) {
                 System.err.println("Execution Error: " + e.getMessage());
+                // -Dinterpreter.trace=N shows the statements leading up to it.
+                StatementTrace.dump(source, System.err);
+                errors++;
             }
         }
+        Events.endExecute(event, script, closureEngine ? "closure" : "tree", statements.size(), errors);
+        return errors;
     }
 }
@@ -2,21 +2,81 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class Lexer {
-    private final String source;
+    // An error and the offset of the token it was found in, for callers that
+    // collect errors and report them later.
+    static final class LexError {
+        final int offset;
+        final String message;
+
+        LexError(int offset, String message) {
+            this.offset = offset;
+            this.message = message;
+        }
+    }
+
+    private final CharSequence source;
     private final List<Token> tokens = new ArrayList<>();
     private int start = 0;
     private int current = 0;
+    private boolean reportErrors = true;
+    private List<LexError> errors;
 
-    public Lexer(String source) {
+    public Lexer(CharSequence source) {
         this.source = source;
     }
 
+    // Starts lexing at the given offset. The lexer keeps no state besides its
+    // position, so starting at the end of any previously produced token gives
+    // the same tokens a full scan would from there on.
+    public Lexer(CharSequence source, int offset) {
+        this.source = source;
+        this.start = offset;
+        this.current = offset;
+    }
+
+    // Errors are printed to System.err unless turned off, e.g. by an editor
+    // that lexes half-typed code on every keystroke.
+    public void setReportErrors(boolean reportErrors) {
+        this.reportErrors = reportErrors;
+    }
+
+    // Collects errors into the given list instead of printing them.
+    void collectErrors(List<LexError> errors) {
+        this.errors = errors;
+    }
+
+    // Scans the tokens that start before limit; the last one may run past
+    // it. Returns them without an EOF token; position() tells where it ended.
+    List<Token> scanUntil(int limit) {
+        while (current < limit && !isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+        return tokens;
+    }
+
+    int position() {
+        return current;
+    }
+
+    // Scans and returns the next token, or null at the end of the source.
+    public Token nextToken() {
+        int count = tokens.size();
+        while (!isAtEnd() && tokens.size() == count) {
+            start = current;
+            scanToken();
+        }
+        return tokens.size() > count ? tokens.remove(count) : null;
+    }
+
     public List<Token> scanTokens() {
+        Events.Lex event = Events.beginLex();
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
-        tokens.add(new Token(TokenType.EOF, "", null));
+        tokens.add(new Token(TokenType.EOF, "", null, current, current));
+        Events.endLex(event, source.length(), tokens.size());
         return tokens;
     }
 
@@ -89,12 +149,14 @@ public class Lexer {
             case '\n':
                 break;
             default:
-                if (isDigit(c) || c == '.') {
+                if (isDigit(c) || (c == '.' && isDigit(peek()))) {
                     number();
+                } else if (c == '.') {
+                    addToken(TokenType.DOT);
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    System.err.println("Lexer Error: Unexpected character: " + c);
+                    error("Unexpected character: " + c);
                 }
                 break;
         }
@@ -115,21 +177,37 @@ public class Lexer {
         addToken(type, null);
     }
 
-    private void addToken(TokenType type, Double value) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, value));
+    private void addToken(TokenType type, Number value) {
+        String text = source.subSequence(start, current).toString();
+        tokens.add(new Token(type, text, value, start, current));
+    }
+
+    private void error(String message) {
+        if (errors != null) {
+            errors.add(new LexError(start, message));
+        } else if (reportErrors) {
+            System.err.println("Lexer Error: " + message);
+        }
     }
 
     private void number() {
         while (!isAtEnd() && (isDigit(peek()) || peek() == '.')) {
             advance();
         }
-        String text = source.substring(start, current);
+        String text = source.subSequence(start, current).toString();
+        // Literals without a '.' are exact integers unless they overflow a long.
+        if (text.indexOf('.') < 0) {
+            try {
+                addToken(TokenType.NUMBER, Long.parseLong(text));
+                return;
+            } catch (NumberFormatException e) {
+                // Too big for a long.
+            }
+        }
         try {
-            Double val = Double.parseDouble(text);
-            addToken(TokenType.NUMBER, val);
+            addToken(TokenType.NUMBER, Double.parseDouble(text));
         } catch (NumberFormatException e) {
-            System.err.println("Lexer Error: Invalid number format: " + text);
+            error("Invalid number format: " + text);
         }
     }
 
@@ -137,7 +215,7 @@ public class Lexer {
         while (!isAtEnd() && isAlphaNumeric(peek())) {
             advance();
         }
-        String text = source.substring(start, current);
+        String text = source.subSequence(start, current).toString();
         switch (text) {
             case "fun":
                 addToken(TokenType.FUN);
@@ -175,9 +253,18 @@ public class Lexer {
             case "while":
                 addToken(TokenType.WHILE);
                 break;
+            case "for":
+                addToken(TokenType.FOR);
+                break;
+            case "in":
+                addToken(TokenType.IN);
+                break;
             case "input":
                 addToken(TokenType.INPUT);
                 break;
+            case "import":
+                addToken(TokenType.IMPORT);
+                break;
             default:
                 addToken(TokenType.IDENTIFIER);
                 break;
@@ -189,12 +276,12 @@ public class Lexer {
             advance();
         }
         if (isAtEnd()) {
-            System.err.println("Lexer Error: Unterminated string.");
+            error("Unterminated string.");
             return;
         }
         advance();
-        String value = source.substring(start + 1, current - 1);
-        tokens.add(new Token(TokenType.STRING, value, null));
+        String value = source.subSequence(start + 1, current - 1).toString();
+        tokens.add(new Token(TokenType.STRING, value, null, start, current));
     }
 
     private char peek() {
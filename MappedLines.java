@@ -0,0 +1,136 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Iterates over the lines of a file through a sliding memory-mapped window.
+// Lines are decoded only when next() is called, so heap use is bounded by
+// the longest line rather than by the size of the file. A byte range of the
+// file can be read on its own, which lets large files be split into chunks.
+// The file is closed at the end of the lines, and by whoever stops reading
+// early; reading on after that reopens it.
+public class MappedLines implements Iterator<Value>, AutoCloseable {
+    private static final long WINDOW = 64L * 1024 * 1024;
+
+    private final String path;
+    private FileChannel channel;
+    private final long end;
+    private long windowStart;
+    private MappedByteBuffer window;
+
+    public MappedLines(String path) {
+        this(path, 0, -1);
+    }
+
+    // Reads the lines in [from, to) of the file; to == -1 means end of file.
+    public MappedLines(String path, long from, long to) {
+        this.path = path;
+        try {
+            channel = FileChannel.open(Path.of(path), StandardOpenOption.READ);
+            end = to < 0 ? channel.size() : Math.min(to, channel.size());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + path + ": " + e.getMessage());
+        }
+        try {
+            map(from);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        boolean more = windowStart + window.position() < end;
+        if (!more) {
+            close();
+        }
+        return more;
+    }
+
+    @Override
+    public Value next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ByteArrayOutputStream spill = null;
+        while (true) {
+            int start = window.position();
+            int limit = window.limit();
+            int i = start;
+            while (i < limit && window.get(i) != '\n') {
+                i++;
+            }
+            boolean atEnd = windowStart + limit >= end;
+            if (i < limit || atEnd) {
+                String line = decode(spill, start, i);
+                window.position(i < limit ? i + 1 : limit);
+                return Value.ofText(line);
+            }
+            if (start > 0) {
+                // Slide the window so the current line starts at its beginning.
+                map(windowStart + start);
+            } else {
+                // The line is longer than a whole window.
+                if (spill == null) {
+                    spill = new ByteArrayOutputStream();
+                }
+                byte[] bytes = new byte[limit];
+                window.get(0, bytes);
+                spill.write(bytes, 0, limit);
+                map(windowStart + limit);
+            }
+        }
+    }
+
+    private String decode(ByteArrayOutputStream spill, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        window.get(from, bytes);
+        if (spill != null) {
+            spill.write(bytes, 0, bytes.length);
+            bytes = spill.toByteArray();
+        }
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void map(long position) {
+        try {
+            // A window already mapped stays readable after the channel is
+            // closed, so it is only reopened to map the next one.
+            if (channel == null) {
+                channel = FileChannel.open(Path.of(path), StandardOpenOption.READ);
+            }
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, end - position));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing useful to do; the lines were already read.
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<lines of " + path + ">";
+    }
+}
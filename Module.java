@@ -0,0 +1,30 @@
+import java.io.Serializable;
+
+// A loaded module: the global scope its script ran in. Its members are the
+// globals the script defined, read with `name.member`.
+public class Module implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final String name;
+    public final String path;
+    final Environment globals;
+
+    public Module(String name, String path, Environment globals) {
+        this.name = name;
+        this.path = path;
+        this.globals = globals;
+    }
+
+    public Value get(String member) {
+        Environment.Binding binding = globals.bindings().get(member);
+        if (binding == null) {
+            throw new RuntimeException("Module " + name + " has no member " + member + ".");
+        }
+        return binding.value;
+    }
+
+    @Override
+    public String toString() {
+        return "<module " + name + ">";
+    }
+}
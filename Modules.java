@@ -0,0 +1,305 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Loads the modules named by import statements. A module is a script that
+// runs once, in its own global scope, and whose globals are then read
+// through the name it was imported as. Loading is cached at three levels:
+// - the loaded module, so a module imported twice in one process runs once;
+// - its parsed statements, lexed and parsed on another thread as soon as
+//   the importing script has been parsed, along with what they import;
+// - its tokens on disk, keyed by the module's path and checked against a
+//   digest of its source, so later runs skip lexing modules that have not
+//   changed. (Serialized syntax trees were tried and read back no faster
+//   than the source parses; with --lazy, function bodies are only skimmed.)
+public class Modules {
+    private static final int MAGIC = 0x544F4B31; // "TOK1"
+    // Bumped whenever the layout of a cache file, or the tokens the lexer
+    // makes of a source, change.
+    private static final int FORMAT = 3;
+    // Token types are stored by ordinal, so a cache written by a lexer with
+    // other token types must not be read back.
+    private static final int FINGERPRINT = fingerprint();
+    // Where parsed modules are kept across runs; an empty value turns the
+    // disk cache off. The default is private to the user, since a cache file
+    // planted by someone else would be run as their module.
+    private static final String CACHE = System.getProperty("interpreter.moduleCache",
+            Paths.get(System.getProperty("user.home"), ".cache", "interpreter-modules").toString());
+
+    private static final Map<String, CompletableFuture<List<Stmt>>> parsed = new ConcurrentHashMap<>();
+    private static final Map<String, Value> loaded = new HashMap<>();
+    private static final Set<String> loading = new HashSet<>();
+
+    // The name a module is bound to without "as": its file name without the
+    // extension, or null if that is not an identifier.
+    static String defaultName(String path) {
+        String name = Paths.get(path).getFileName().toString();
+        int dot = name.indexOf('.');
+        if (dot >= 0) {
+            name = name.substring(0, dot);
+        }
+        if (name.isEmpty() || !(Character.isLetter(name.charAt(0)) || name.charAt(0) == '_')) {
+            return null;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isLetterOrDigit(name.charAt(i)) && name.charAt(i) != '_') {
+                return null;
+            }
+        }
+        return name;
+    }
+
+    // A module path taken from the working directory.
+    static String resolve(String path) {
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+    // Resolves the imports of a parsed script against the directory it was
+    // read from, and starts parsing the modules in the background.
+    public static void bind(List<Stmt> statements, Path directory, boolean lazy) {
+        for (Stmt stmt : statements) {
+            if (stmt instanceof Stmt.Import) {
+                Stmt.Import module = (Stmt.Import) stmt;
+                if (module.file == null) {
+                    module.file = directory.resolve(module.path).toAbsolutePath().normalize().toString();
+                }
+                prefetch(module.file, lazy);
+            }
+        }
+    }
+
+    private static CompletableFuture<List<Stmt>> prefetch(String file, boolean lazy) {
+        return parsed.computeIfAbsent(file, f -> CompletableFuture.supplyAsync(() -> parse(f, lazy)));
+    }
+
+    // Runs the module in the given file, once per process, and returns it.
+    public static synchronized Value load(String file, boolean closureEngine) {
+        Value module = loaded.get(file);
+        if (module != null) {
+            return module;
+        }
+        if (!loading.add(file)) {
+            throw new RuntimeException("Circular import of " + file);
+        }
+        try {
+            List<Stmt> statements;
+            try {
+                statements = prefetch(file, false).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException("Cannot load module " + file + ": " + e.getCause());
+            }
+            if (closureEngine) {
+                statements = ClosureCompiler.compile(statements);
+            }
+            Environment globals = new Environment();
+            try {
+                for (Stmt stmt : statements) {
+                    StatementTrace.record(stmt);
+                    stmt.execute(globals);
+                }
+            } catch (Stmt.ReturnException e) {
+                // A top-level return ends the module.
+            } catch (RuntimeException e) {
+                throw new RuntimeException("In module " + file + ": " + e.getMessage());
+            }
+            String name = defaultName(file);
+            module = Value.ofModule(new Module(name != null ? name : file, file, globals));
+            loaded.put(file, module);
+            return module;
+        } finally {
+            loading.remove(file);
+        }
+    }
+
+    private static List<Stmt> parse(String file, boolean lazy) {
+        String source;
+        try {
+            source = Files.readString(Paths.get(file), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            throw new RuntimeException("Module not found: " + file);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read module " + file + ": " + e.getMessage());
+        }
+        byte[] digest = digest(source);
+        List<Token> tokens = readCache(file, digest, source);
+        if (tokens == null) {
+            List<Lexer.LexError> errors = new ArrayList<>();
+            tokens = ParallelLexer.scan(source, errors);
+            for (Lexer.LexError error : errors) {
+                System.err.println("Lexer Error in module " + file + ": " + error.message);
+            }
+            // Errors would not be reported again from the cache.
+            if (errors.isEmpty()) {
+                writeCache(file, digest, tokens);
+            }
+        }
+        List<Stmt> statements;
+        try {
+            statements = new Parser(tokens, lazy).parseProgram();
+        } catch (Parser.ParseException e) {
+            throw new RuntimeException("Parse Error in module " + file + ": " + e.getMessage());
+        }
+        bind(statements, Paths.get(file).getParent(), lazy);
+        return statements;
+    }
+
+    private static Path cacheFile(String file) {
+        if (CACHE.isEmpty()) {
+            return null;
+        }
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest(file)) {
+            name.append(String.format("%02x", b));
+        }
+        return Paths.get(CACHE, name.append(".tokens").toString());
+    }
+
+    // Returns the cached tokens of the source, or null if there are none for
+    // this version of it. Only the type, offsets and number value of a token
+    // are stored; its text is cut from the source again.
+    private static List<Token> readCache(String file, byte[] digest, String source) {
+        Path cache = cacheFile(file);
+        if (cache == null || !Files.exists(cache)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] path = file.getBytes(StandardCharsets.UTF_8);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FINGERPRINT || buffer.getInt() != path.length) {
+                return null;
+            }
+            byte[] storedPath = new byte[path.length];
+            byte[] storedDigest = new byte[digest.length];
+            buffer.get(storedPath).get(storedDigest);
+            if (!Arrays.equals(path, storedPath) || !Arrays.equals(digest, storedDigest)) {
+                return null;
+            }
+            TokenType[] types = TokenType.values();
+            int count = buffer.getInt();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                TokenType type = types[buffer.get()];
+                int start = buffer.getInt();
+                int end = buffer.getInt();
+                Number value = null;
+                String lexeme;
+                if (type == TokenType.STRING) {
+                    lexeme = source.substring(start + 1, end - 1);
+                } else {
+                    lexeme = source.substring(start, end);
+                    if (type == TokenType.NUMBER) {
+                        value = buffer.get() == 0 ? (Number) buffer.getLong() : (Number) buffer.getDouble();
+                    }
+                }
+                tokens.add(new Token(type, lexeme, value, start, end));
+            }
+            return tokens;
+        } catch (IOException | RuntimeException e) {
+            // Unreadable, or written by another version of the lexer.
+            return null;
+        }
+    }
+
+    // Stores the tokens for the next run. The cache is only a shortcut, so
+    // if it cannot be written the module is simply lexed again next time.
+    private static void writeCache(String file, byte[] digest, List<Token> tokens) {
+        Path cache = cacheFile(file);
+        if (cache == null) {
+            return;
+        }
+        Path temporary = null;
+        try {
+            createPrivateDirectory(cache.getParent());
+            temporary = Files.createTempFile(cache.getParent(), "module", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                byte[] path = file.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(MAGIC);
+                out.writeInt(FINGERPRINT);
+                out.writeInt(path.length);
+                out.write(path);
+                out.write(digest);
+                out.writeInt(tokens.size());
+                for (Token token : tokens) {
+                    out.writeByte(token.type.ordinal());
+                    out.writeInt(token.start);
+                    out.writeInt(token.end);
+                    if (token.type == TokenType.NUMBER) {
+                        boolean integer = token.value instanceof Long;
+                        out.writeByte(integer ? 0 : 1);
+                        if (integer) {
+                            out.writeLong(token.value.longValue());
+                        } else {
+                            out.writeDouble(token.value.doubleValue());
+                        }
+                    }
+                }
+            }
+            Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                if (temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+            } catch (IOException ignored) {
+                // Nothing more to do.
+            }
+        }
+    }
+
+    // Creates the cache directory readable and writable by its owner only,
+    // where the file system has POSIX permissions.
+    private static void createPrivateDirectory(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createDirectories(directory);
+        }
+    }
+
+    private static int fingerprint() {
+        StringBuilder names = new StringBuilder().append(FORMAT);
+        for (TokenType type : TokenType.values()) {
+            names.append(',').append(type.name());
+        }
+        byte[] digest = digest(names.toString());
+        return ByteBuffer.wrap(digest).getInt();
+    }
+
+    private static byte[] digest(String text) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A built-in function implemented in Java. Functions are kept in a registry
+// that host code can extend with register(); the parser resolves a call to
+// a registered name once, checks its arity, and emits a node that calls the
+// function directly, unless the script defines that name itself. Calls with
+// up to three arguments go through call0 to call3 so no argument array is
+// allocated. A name that is not a variable also evaluates to the built-in,
+// so it can be passed to map or sort like a script function.
+public abstract class NativeFunction implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public interface Fn0 { Value apply(); }
+    public interface Fn1 { Value apply(Value a); }
+    public interface Fn2 { Value apply(Value a, Value b); }
+    public interface Fn3 { Value apply(Value a, Value b, Value c); }
+    public interface FnN { Value apply(Value[] args); }
+    // A function that also sees the scope it is called from.
+    public interface FnScope { Value apply(Environment scope, Value[] args); }
+
+    private static final Map<String, NativeFunction> REGISTRY = new HashMap<>();
+
+    static {
+        Builtins.registerAll();
+    }
+
+    public final String name;
+    public final int minArity;
+    public final int maxArity;
+    // Describes the parameters in arity errors, e.g. "list, element".
+    public final String parameters;
+    // The function as a script value, made on first use.
+    private transient volatile Value value;
+
+    protected NativeFunction(String name, int minArity, int maxArity, String parameters) {
+        this.name = name;
+        this.minArity = minArity;
+        this.maxArity = maxArity;
+        this.parameters = parameters;
+    }
+
+    public abstract Value call(Value[] args);
+
+    // Calls the function from the given scope, which only functions
+    // registered with registerScoped look at.
+    public Value callInScope(Environment scope, Value[] args) {
+        return call(args);
+    }
+
+    public boolean usesScope() {
+        return false;
+    }
+
+    public Value value() {
+        Value v = value;
+        if (v == null) {
+            v = Value.ofFunction(new FunctionValue(this));
+            value = v;
+        }
+        return v;
+    }
+
+    // Native functions are written to snapshots by name and looked up again
+    // in the registry when read back.
+    protected Object writeReplace() {
+        return new Reference(name);
+    }
+
+    private static final class Reference implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        Reference(String name) {
+            this.name = name;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            NativeFunction function = lookup(name);
+            if (function == null) {
+                throw new InvalidObjectException("Unknown native function: " + name);
+            }
+            return function;
+        }
+    }
+
+    public Value call0() {
+        return call(new Value[0]);
+    }
+
+    public Value call1(Value a) {
+        return call(new Value[] { a });
+    }
+
+    public Value call2(Value a, Value b) {
+        return call(new Value[] { a, b });
+    }
+
+    public Value call3(Value a, Value b, Value c) {
+        return call(new Value[] { a, b, c });
+    }
+
+    public boolean accepts(int count) {
+        return count >= minArity && count <= maxArity;
+    }
+
+    public String arityMessage() {
+        String count = minArity == maxArity ? String.valueOf(minArity) : minArity + " to " + maxArity;
+        return name + " expects " + count + " argument(s): " + parameters + ".";
+    }
+
+    public static synchronized void register(NativeFunction function) {
+        REGISTRY.put(function.name, function);
+    }
+
+    public static synchronized NativeFunction lookup(String name) {
+        return REGISTRY.get(name);
+    }
+
+    public static void register(String name, String parameters, Fn0 fn) {
+        register(new NativeFunction(name, 0, 0, parameters) {
+            public Value call(Value[] args) { return fn.apply(); }
+            public Value call0() { return fn.apply(); }
+        });
+    }
+
+    public static void register(String name, String parameters, Fn1 fn) {
+        register(new NativeFunction(name, 1, 1, parameters) {
+            public Value call(Value[] args) { return fn.apply(args[0]); }
+            public Value call1(Value a) { return fn.apply(a); }
+        });
+    }
+
+    public static void register(String name, String parameters, Fn2 fn) {
+        register(new NativeFunction(name, 2, 2, parameters) {
+            public Value call(Value[] args) { return fn.apply(args[0], args[1]); }
+            public Value call2(Value a, Value b) { return fn.apply(a, b); }
+        });
+    }
+
+    public static void register(String name, String parameters, Fn3 fn) {
+        register(new NativeFunction(name, 3, 3, parameters) {
+            public Value call(Value[] args) { return fn.apply(args[0], args[1], args[2]); }
+            public Value call3(Value a, Value b, Value c) { return fn.apply(a, b, c); }
+        });
+    }
+
+    public static void register(String name, int minArity, int maxArity, String parameters, FnN fn) {
+        register(new NativeFunction(name, minArity, maxArity, parameters) {
+            public Value call(Value[] args) { return fn.apply(args); }
+        });
+    }
+
+    // Called without a scope, e.g. from a snapshot, fn gets null.
+    public static void registerScoped(String name, int minArity, int maxArity, String parameters, FnScope fn) {
+        register(new NativeFunction(name, minArity, maxArity, parameters) {
+            public Value call(Value[] args) { return fn.apply(null, args); }
+            public Value callInScope(Environment scope, Value[] args) { return fn.apply(scope, args); }
+            public boolean usesScope() { return true; }
+        });
+    }
+
+    // Builds the direct-dispatch node for a call with the given arguments.
+    public static Expr callNode(NativeFunction function, List<Expr> arguments) {
+        if (function.usesScope()) {
+            return new ScopedNativeCall(function, arguments);
+        }
+        switch (arguments.size()) {
+            case 0:
+                return new NativeCall0(function, arguments);
+            case 1:
+                return new NativeCall1(function, arguments);
+            case 2:
+                return new NativeCall2(function, arguments);
+            case 3:
+                return new NativeCall3(function, arguments);
+            default:
+                return new NativeCallN(function, arguments);
+        }
+    }
+}
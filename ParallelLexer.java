@@ -0,0 +1,164 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Lexes a large source on several cores. The source is cut into chunks at
+// whitespace and each chunk is lexed on its own, as if a token started right
+// there. That only goes wrong when the previous chunk's last token runs
+// across the cut, which only a string literal can do. The seam is then
+// re-lexed from the end of that token until it produces a token starting
+// where one of the chunk's own tokens does. The lexer keeps no state besides
+// its position, so from that token on the chunk's tokens are exactly those
+// of a sequential scan. Errors are collected with their offsets and printed
+// in source order, as a sequential scan prints them.
+public class ParallelLexer {
+    // Sources shorter than two chunks are lexed on the calling thread.
+    private static final int MIN_CHUNK = 1 << 20;
+
+    // The tokens lexed from one chunk, and where its lexer stopped: at its
+    // end, or past it if the last token ran on.
+    private static final class Chunk {
+        final int from;
+        final int to;
+        final List<Token> tokens;
+        final List<Lexer.LexError> errors = new ArrayList<>();
+        final int stop;
+
+        Chunk(CharSequence source, int from, int to) {
+            this.from = from;
+            this.to = to;
+            Lexer lexer = new Lexer(source, from);
+            lexer.collectErrors(errors);
+            this.tokens = lexer.scanUntil(to);
+            this.stop = lexer.position();
+        }
+    }
+
+    // Returns the same tokens as new Lexer(source).scanTokens().
+    public static List<Token> scan(CharSequence source) {
+        List<Lexer.LexError> errors = new ArrayList<>();
+        List<Token> tokens = scan(source, errors);
+        for (Lexer.LexError error : errors) {
+            System.err.println("Lexer Error: " + error.message);
+        }
+        return tokens;
+    }
+
+    // The same, with the errors collected in source order instead of printed.
+    static List<Token> scan(CharSequence source, List<Lexer.LexError> errors) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int chunks = (int) Math.min(source.length() / MIN_CHUNK, processors * 4L);
+        if (processors < 2 || chunks < 2) {
+            Lexer lexer = new Lexer(source);
+            lexer.collectErrors(errors);
+            return lexer.scanTokens();
+        }
+        return scan(source, chunks, errors);
+    }
+
+    static List<Token> scan(CharSequence source, int chunks, List<Lexer.LexError> errors) {
+        Events.Lex event = Events.beginLex();
+        int[] bounds = chunkBounds(source, chunks);
+        chunks = bounds.length - 1;
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(chunks, Runtime.getRuntime().availableProcessors()), runnable -> {
+                    Thread thread = new Thread(runnable, "lexer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        List<Token> tokens = new ArrayList<>();
+        try {
+            List<Future<Chunk>> lexed = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                int from = bounds[i];
+                int to = bounds[i + 1];
+                lexed.add(pool.submit(() -> new Chunk(source, from, to)));
+            }
+            // Join the chunks in source order, as soon as each one is ready.
+            int position = 0;
+            for (Future<Chunk> chunk : lexed) {
+                position = join(source, chunk.get(), position, tokens, errors);
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Lexer: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Lexing interrupted.");
+        } finally {
+            pool.shutdownNow();
+        }
+        tokens.add(new Token(TokenType.EOF, "", null, source.length(), source.length()));
+        Events.endLex(event, source.length(), tokens.size());
+        return tokens;
+    }
+
+    // Appends a chunk's tokens and errors, given the position a sequential
+    // scan would have reached by the start of the chunk, and returns the
+    // position it reaches past the chunk.
+    private static int join(CharSequence source, Chunk chunk, int position,
+                            List<Token> tokens, List<Lexer.LexError> errors) {
+        if (position == chunk.from) {
+            tokens.addAll(chunk.tokens);
+            errors.addAll(chunk.errors);
+            return chunk.stop;
+        }
+        // A string ran across the cut: re-lex until back in step with the chunk.
+        Lexer lexer = new Lexer(source, position);
+        List<Lexer.LexError> seamErrors = new ArrayList<>();
+        lexer.collectErrors(seamErrors);
+        int next = 0;
+        while (true) {
+            Token token = lexer.nextToken();
+            if (token == null) {
+                errors.addAll(seamErrors);
+                return source.length();
+            }
+            while (next < chunk.tokens.size() && chunk.tokens.get(next).start < token.start) {
+                next++;
+            }
+            if (next < chunk.tokens.size() && chunk.tokens.get(next).start == token.start) {
+                errors.addAll(seamErrors);
+                for (Lexer.LexError error : chunk.errors) {
+                    if (error.offset >= token.start) {
+                        errors.add(error);
+                    }
+                }
+                tokens.addAll(chunk.tokens.subList(next, chunk.tokens.size()));
+                return chunk.stop;
+            }
+            if (token.start >= chunk.to) {
+                // Past the chunk without meeting it; the next chunk picks
+                // up from this token.
+                errors.addAll(seamErrors);
+                return token.start;
+            }
+            tokens.add(token);
+        }
+    }
+
+    // Returns chunk boundaries 0 = b0 < b1 < ... < bn = length, each one at
+    // a whitespace character, where no token but a string can be cut.
+    private static int[] chunkBounds(CharSequence source, int chunks) {
+        int length = source.length();
+        int[] bounds = new int[chunks + 1];
+        int count = 1;
+        for (int i = 1; i < chunks; i++) {
+            int position = (int) Math.max((long) length * i / chunks, bounds[count - 1] + 1);
+            while (position < length && !Character.isWhitespace(source.charAt(position))) {
+                position++;
+            }
+            if (position < length) {
+                bounds[count++] = position;
+            }
+        }
+        bounds[count++] = length;
+        return Arrays.copyOf(bounds, count);
+    }
+}
@@ -1,8 +1,10 @@
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class Parser {
     public static class ParseException extends Exception {
@@ -12,25 +14,106 @@ public class Parser {
     }
 
     private final List<Token> tokens;
+    // When set, function bodies are only skimmed and parsed on first call.
+    private final boolean lazy;
+    // Names the program binds itself; calls to them are never bound to a
+    // built-in function of the same name.
+    private final Set<String> bound;
     private int current = 0;
 
     public Parser(List<Token> tokens) {
+        this(tokens, false);
+    }
+
+    public Parser(List<Token> tokens, boolean lazy) {
+        this(tokens, lazy, boundNames(tokens));
+    }
+
+    Parser(List<Token> tokens, boolean lazy, Set<String> bound) {
         this.tokens = tokens;
+        this.lazy = lazy;
+        this.bound = bound;
+    }
+
+    // The names a program defines as functions, parameters, assigned
+    // variables or loop variables, found from the tokens alone. A name in
+    // here shadows a built-in anywhere in the program, which at worst turns
+    // a direct built-in call into an ordinary one: an unbound name still
+    // finds the built-in at run time.
+    static Set<String> boundNames(List<Token> tokens) {
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i + 1 < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            TokenType next = tokens.get(i + 1).type;
+            if (token.type == TokenType.FUN) {
+                // The function's name and its parameters.
+                for (int j = i + 1; j < tokens.size() && tokens.get(j).type != TokenType.RIGHT_PAREN; j++) {
+                    if (tokens.get(j).type == TokenType.IDENTIFIER) {
+                        names.add(tokens.get(j).lexeme);
+                    }
+                }
+            } else if (token.type == TokenType.IDENTIFIER && (next == TokenType.EQUAL || next == TokenType.IN)) {
+                names.add(token.lexeme);
+            }
+        }
+        return names;
     }
 
     // Parse an entire program (list of statements)
     public List<Stmt> parseProgram() throws ParseException {
         List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) {
-            if (match(TokenType.FUN)) {
-                statements.add(functionDeclaration());
-            } else {
-                statements.add(statement());
+        Events.Parse event = Events.beginParse();
+        try {
+            while (!isAtEnd()) {
+                statements.add(check(TokenType.IMPORT) ? importDeclaration() : declaration());
             }
+        } catch (StackOverflowError e) {
+            throw new ParseException("Program is nested too deeply.");
         }
+        Events.endParse(event, tokens.size(), statements.size());
         return statements;
     }
 
+    // Parses the block whose "{" is at the given token, the body of a lazily
+    // parsed function.
+    Stmt.Block parseBlock(int open) throws ParseException {
+        current = open;
+        consume(TokenType.LEFT_BRACE, "Expect '{' before function body.");
+        try {
+            return new Stmt.Block(block());
+        } catch (StackOverflowError e) {
+            throw new ParseException("Program is nested too deeply.");
+        }
+    }
+
+    // declaration → functionDeclaration | statement ; records where it starts.
+    private Stmt declaration() throws ParseException {
+        int offset = peek().start;
+        Stmt stmt = match(TokenType.FUN) ? functionDeclaration() : statement();
+        stmt.offset = offset;
+        return stmt;
+    }
+
+    // importDeclaration → "import" STRING ( "as" IDENTIFIER )? ; only at the
+    // top level. Without "as" the module is named after its file.
+    private Stmt importDeclaration() throws ParseException {
+        int offset = advance().start;
+        Token path = consume(TokenType.STRING, "Expect module path after 'import'.");
+        String name;
+        if (check(TokenType.IDENTIFIER) && peek().lexeme.equals("as")) {
+            advance();
+            name = consume(TokenType.IDENTIFIER, "Expect module name after 'as'.").lexeme;
+        } else {
+            name = Modules.defaultName(path.lexeme);
+            if (name == null) {
+                throw new ParseException("Expect 'as' and a name for module \"" + path.lexeme + "\".");
+            }
+        }
+        Stmt stmt = new Stmt.Import(path.lexeme, name);
+        stmt.offset = offset;
+        return stmt;
+    }
+
     // functionDeclaration → "fun" IDENTIFIER "(" parameters? ")" block
     private Stmt functionDeclaration() throws ParseException {
         Token name = consume(TokenType.IDENTIFIER, "Expect function name.");
@@ -43,15 +126,22 @@ public class Parser {
             } while (match(TokenType.COMMA));
         }
         consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+        if (lazy && check(TokenType.LEFT_BRACE)) {
+            int open = current;
+            skipBlock();
+            return new Stmt.Function(name.lexeme, parameters, new Stmt.LazyBlock(name.lexeme, tokens, bound, open, current));
+        }
         Stmt.Block body = (Stmt.Block) statement(); // Expect a block as the function body.
         return new Stmt.Function(name.lexeme, parameters, body);
     }
 
-    // statement → returnStmt | ifStmt | whileStmt | printStmt | varStmt | block | expressionStmt ;
+    // statement → returnStmt | ifStmt | whileStmt | forStmt | printStmt | varStmt | block | expressionStmt ;
     private Stmt statement() throws ParseException {
         if (match(TokenType.RETURN)) return returnStmt();
+        if (check(TokenType.IMPORT)) throw new ParseException("'import' is only allowed at the top level of a script.");
         if (match(TokenType.IF)) return ifStmt();
         if (match(TokenType.WHILE)) return whileStmt();
+        if (match(TokenType.FOR)) return forStmt();
         if (match(TokenType.LEFT_BRACE)) return new Stmt.Block(block());
         if (match(TokenType.PRINT)) return printStmt();
         if (match(TokenType.PRINTUPPER)) return printUpperStmt();
@@ -88,19 +178,44 @@ public class Parser {
         return new Stmt.While(condition, body);
     }
 
+    // forStmt → "for" "("? IDENTIFIER "in" expression ")"? statement ;
+    private Stmt forStmt() throws ParseException {
+        boolean parenthesized = match(TokenType.LEFT_PAREN);
+        Token name = consume(TokenType.IDENTIFIER, "Expect loop variable name after 'for'.");
+        consume(TokenType.IN, "Expect 'in' after loop variable.");
+        Expr iterable = expression();
+        if (parenthesized) {
+            consume(TokenType.RIGHT_PAREN, "Expect ')' after for clause.");
+        }
+        Stmt body = statement();
+        return new Stmt.ForIn(name.lexeme, iterable, body);
+    }
+
     private List<Stmt> block() throws ParseException {
         List<Stmt> statements = new ArrayList<>();
         while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
-            if (match(TokenType.FUN)) {
-                statements.add(functionDeclaration());
-            } else {
-                statements.add(statement());
-            }
+            statements.add(declaration());
         }
         consume(TokenType.RIGHT_BRACE, "Expect '}' after block.");
         return statements;
     }
 
+    // Skips a "{" and everything up to its matching "}" without parsing it.
+    private void skipBlock() throws ParseException {
+        int depth = 0;
+        do {
+            if (isAtEnd()) {
+                throw new ParseException("Expect '}' after block. Found: " + peek().lexeme);
+            }
+            TokenType type = advance().type;
+            if (type == TokenType.LEFT_BRACE) {
+                depth++;
+            } else if (type == TokenType.RIGHT_BRACE) {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
     private Stmt printUpperStmt() throws ParseException {
         Expr expr = expression();
         return new Stmt.PrintUpper(expr);
@@ -124,83 +239,110 @@ public class Parser {
         return new Stmt.Expression(expr);
     }
 
-    // expression → orExpr ;
-    private Expr expression() throws ParseException {
-        return orExpr();
-    }
+    // Binding power of each binary operator, from `or` (loosest) to `*` and
+    // `/` (tightest); 0 for every token that cannot continue an expression.
+    private static final int[] PRECEDENCE = new int[TokenType.values().length];
 
-    private Expr orExpr() throws ParseException {
-        Expr expr = andExpr();
-        while (match(TokenType.OR)) {
-            Token operator = previous();
-            Expr right = andExpr();
-            expr = new Binary(expr, operator, right);
-        }
-        return expr;
+    static {
+        precedence(1, TokenType.OR);
+        precedence(2, TokenType.AND);
+        precedence(3, TokenType.EQUAL_EQUAL, TokenType.BANG_EQUAL);
+        precedence(4, TokenType.LESS, TokenType.LESS_EQUAL, TokenType.GREATER, TokenType.GREATER_EQUAL);
+        precedence(5, TokenType.PLUS, TokenType.MINUS);
+        precedence(6, TokenType.STAR, TokenType.SLASH);
     }
 
-    private Expr andExpr() throws ParseException {
-        Expr expr = equality();
-        while (match(TokenType.AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr equality() throws ParseException {
-        Expr expr = comparison();
-        while (match(TokenType.EQUAL_EQUAL, TokenType.BANG_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr comparison() throws ParseException {
-        Expr expr = addition();
-        while (match(TokenType.LESS, TokenType.LESS_EQUAL, TokenType.GREATER, TokenType.GREATER_EQUAL)) {
-            Token operator = previous();
-            Expr right = addition();
-            expr = new Binary(expr, operator, right);
+    private static void precedence(int power, TokenType... types) {
+        for (TokenType type : types) {
+            PRECEDENCE[type.ordinal()] = power;
         }
-        return expr;
     }
 
-    private Expr addition() throws ParseException {
-        Expr expr = multiplication();
-        while (match(TokenType.PLUS, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = multiplication();
-            expr = new Binary(expr, operator, right);
-        }
-        return expr;
-    }
+    // Stack entries for an open parenthesis and a prefix operator, below and
+    // above every binary operator.
+    private static final int GROUP = 0;
+    private static final int PREFIX = Integer.MAX_VALUE;
 
-    private Expr multiplication() throws ParseException {
-        Expr expr = unary();
-        while (match(TokenType.STAR, TokenType.SLASH)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Binary(expr, operator, right);
+    // expression → unary ( binaryOperator unary )* ;
+    // unary      → ( "!" | "-" | "+" )* call ;
+    // Operator precedence parsing with explicit stacks instead of recursion:
+    // the left operands and operators still waiting for their right side are
+    // kept in lists, together with prefix operators and open parentheses, so
+    // long chains, deep nesting and runs of prefix operators need no Java
+    // frames. A binary operator is built as soon as an operator that binds no
+    // more tightly follows it, which makes them all left-associative.
+    private Expr expression() throws ParseException {
+        List<Token> operators = new ArrayList<>();
+        List<Integer> precedences = new ArrayList<>();
+        List<Expr> operands = new ArrayList<>();
+        int groups = 0;
+        while (true) {
+            Token token = peek();
+            if (isPrefixOperator(token.type) || token.type == TokenType.LEFT_PAREN) {
+                current++;
+                operators.add(token);
+                if (token.type == TokenType.LEFT_PAREN) {
+                    precedences.add(GROUP);
+                    groups++;
+                } else {
+                    precedences.add(PREFIX);
+                }
+                continue;
+            }
+            Expr expr = call(primary());
+            while (true) {
+                // Prefix operators bind more tightly than any binary one.
+                while (!precedences.isEmpty() && precedences.get(precedences.size() - 1) == PREFIX) {
+                    precedences.remove(precedences.size() - 1);
+                    expr = new Unary(operators.remove(operators.size() - 1), expr);
+                }
+                Token operator = peek();
+                if (operator.type == TokenType.RIGHT_PAREN && groups > 0) {
+                    // Close the innermost group; calls and indexes may follow it.
+                    current++;
+                    expr = reduce(operators, precedences, operands, expr, GROUP + 1);
+                    operators.remove(operators.size() - 1);
+                    precedences.remove(precedences.size() - 1);
+                    groups--;
+                    expr = call(expr);
+                    continue;
+                }
+                int precedence = PRECEDENCE[operator.type.ordinal()];
+                if (precedence == 0) {
+                    if (groups > 0) {
+                        throw new ParseException("Expect ')' after expression. Found: " + operator.lexeme);
+                    }
+                    return reduce(operators, precedences, operands, expr, GROUP + 1);
+                }
+                current++;
+                operands.add(reduce(operators, precedences, operands, expr, precedence));
+                operators.add(operator);
+                precedences.add(precedence);
+                break;
+            }
         }
-        return expr;
     }
 
-    private Expr unary() throws ParseException {
-        if (match(TokenType.BANG, TokenType.MINUS, TokenType.PLUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Unary(operator, right);
+    // Builds the waiting binary operators that bind at least as tightly as
+    // minPrecedence, innermost first, with `right` as the last right operand.
+    private static Expr reduce(List<Token> operators, List<Integer> precedences, List<Expr> operands,
+                               Expr right, int minPrecedence) {
+        while (!precedences.isEmpty() && precedences.get(precedences.size() - 1) >= minPrecedence) {
+            precedences.remove(precedences.size() - 1);
+            Token operator = operators.remove(operators.size() - 1);
+            Expr left = operands.remove(operands.size() - 1);
+            if (operator.type == TokenType.OR || operator.type == TokenType.AND) {
+                right = new Logical(left, operator, right);
+            } else {
+                right = new Binary(left, operator, right);
+            }
         }
-        return call();
+        return right;
     }
 
-    // call → primary ( "(" arguments? ")" | "[" expression "]" )* ;
-    private Expr call() throws ParseException {
-        Expr expr = primary();
+    // call → primary ( "(" arguments? ")" | "[" expression "]" | "." IDENTIFIER )* ;
+    // Parses the suffixes after an operand that is already parsed.
+    private Expr call(Expr expr) throws ParseException {
         while (true) {
             if (match(TokenType.LEFT_PAREN)) {
                 expr = finishCall(expr);
@@ -208,6 +350,9 @@ public class Parser {
                 Expr indexExpr = expression();
                 consume(TokenType.RIGHT_BRACKET, "Expect ']' after index.");
                 expr = new ArrayAccess(expr, indexExpr);
+            } else if (match(TokenType.DOT)) {
+                Token name = consume(TokenType.IDENTIFIER, "Expect member name after '.'.");
+                expr = new Get(expr, name.lexeme);
             } else {
                 break;
             }
@@ -223,33 +368,13 @@ public class Parser {
             } while (match(TokenType.COMMA));
         }
         consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
-        if (callee instanceof Variable) {
-            String functionName = ((Variable)callee).name;
-            if (functionName.equals("input")) {
-                if (arguments.size() != 1) {
-                    throw new ParseException("input expects exactly one argument.");
-                }
-                return new InputExpr(arguments.get(0));
-            } else if (functionName.equals("append")) {
-                if (arguments.size() != 2) {
-                    throw new ParseException("append expects two arguments: list and element.");
+        if (callee instanceof Variable && !bound.contains(((Variable) callee).name)) {
+            NativeFunction function = NativeFunction.lookup(((Variable) callee).name);
+            if (function != null) {
+                if (!function.accepts(arguments.size())) {
+                    throw new ParseException(function.arityMessage());
                 }
-                return new AppendExpr(arguments.get(0), arguments.get(1));
-            } else if (functionName.equals("remove")) {
-                if (arguments.size() != 2) {
-                    throw new ParseException("remove expects two arguments: list and index.");
-                }
-                return new RemoveExpr(arguments.get(0), arguments.get(1));
-            } else if (functionName.equals("put")) {
-                if (arguments.size() != 3) {
-                    throw new ParseException("put expects three arguments: dictionary, key, and value.");
-                }
-                return new PutExpr(arguments.get(0), arguments.get(1), arguments.get(2));
-            } else if (functionName.equals("dict_remove")) {
-                if (arguments.size() != 2) {
-                    throw new ParseException("dict_remove expects two arguments: dictionary and key.");
-                }
-                return new DictRemoveExpr(arguments.get(0), arguments.get(1));
+                return NativeFunction.callNode(function, arguments);
             }
         }
         return new Call(callee, arguments);
@@ -257,7 +382,11 @@ public class Parser {
 
     private Expr primary() throws ParseException {
         if (match(TokenType.NUMBER)) {
-            return new Literal(Value.ofNumber(previous().value, previous().lexeme));
+            Token number = previous();
+            if (number.value instanceof Long) {
+                return new Literal(Value.ofInteger(number.value.longValue(), number.lexeme));
+            }
+            return new Literal(Value.ofNumber(number.value.doubleValue(), number.lexeme));
         }
         if (match(TokenType.STRING)) {
             return new Literal(Value.ofText(previous().lexeme));
@@ -295,10 +424,9 @@ public class Parser {
         if (match(TokenType.IDENTIFIER)) {
             return new Variable(previous().lexeme);
         }
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-            return expr;
+        if (match(TokenType.INPUT)) {
+            // input is a keyword token but is called like any built-in.
+            return new Variable(previous().lexeme);
         }
         throw new ParseException("Expect expression at token: " + peek().lexeme);
     }
@@ -318,6 +446,10 @@ public class Parser {
         return false;
     }
 
+    private static boolean isPrefixOperator(TokenType type) {
+        return type == TokenType.BANG || type == TokenType.MINUS || type == TokenType.PLUS;
+    }
+
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
         return peek().type == type;
@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// End-to-end performance suite. Every script in the bench directory is run
+// through the interpreter several times in this one JVM, after a few warm-up
+// runs. The medians of the wall time, of the bytes allocated by the running
+// thread and of peak heap use are compared with a stored baseline. Any
+// gated metric that grew by more than its threshold is reported as a
+// regression and the suite exits with status 1; --update stores the current
+// numbers instead. Wall time varies by a third between runs on a shared
+// machine, so it is only reported unless --time-threshold gates it too.
+public class PerfSuite {
+    private static final String USAGE =
+            "Usage: java PerfSuite [--engine=tree|closure] [--runs <n>] [--warmup <n>]\n"
+            + "                      [--time-threshold <%>] [--alloc-threshold <%>] [--peak-threshold <%>]\n"
+            + "                      [--update] [bench-directory]";
+
+    // The measurements of one script.
+    private static final class Result {
+        final double wallMillis;
+        final long allocatedBytes;
+        final long peakHeapBytes;
+
+        Result(double wallMillis, long allocatedBytes, long peakHeapBytes) {
+            this.wallMillis = wallMillis;
+            this.allocatedBytes = allocatedBytes;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get("bench");
+        boolean closureEngine = false;
+        boolean update = false;
+        int runs = 5;
+        int warmup = 2;
+        // Allocation is nearly deterministic, while wall time and especially
+        // peak heap depend on the machine and the collector. A negative
+        // threshold reports the change without gating on it.
+        double timeThreshold = -1;
+        double allocThreshold = 10;
+        double peakThreshold = 50;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--engine=closure") || args[i].equals("--engine=tree")) {
+                    closureEngine = args[i].equals("--engine=closure");
+                } else if (args[i].equals("--update")) {
+                    update = true;
+                } else if (args[i].equals("--runs") && i + 1 < args.length) {
+                    runs = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--warmup") && i + 1 < args.length) {
+                    warmup = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--time-threshold") && i + 1 < args.length) {
+                    timeThreshold = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("--alloc-threshold") && i + 1 < args.length) {
+                    allocThreshold = Double.parseDouble(args[++i]);
+                } else if (args[i].equals("--peak-threshold") && i + 1 < args.length) {
+                    peakThreshold = Double.parseDouble(args[++i]);
+                } else if (!args[i].startsWith("--")) {
+                    dir = Paths.get(args[i]);
+                } else {
+                    System.out.println(USAGE);
+                    System.exit(2);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println(USAGE);
+            System.exit(2);
+        }
+        if (runs < 1) {
+            System.out.println(USAGE);
+            System.exit(2);
+        }
+
+        List<Path> scripts = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.toString().endsWith(".txt") && !p.getFileName().toString().startsWith("baseline"))
+                    .sorted()
+                    .forEach(scripts::add);
+        }
+        String engine = closureEngine ? "closure" : "tree";
+        Path baselineFile = dir.resolve("baseline-" + engine + ".txt");
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (Path script : scripts) {
+            String source = Files.readString(script, StandardCharsets.UTF_8);
+            // A script that fails is not measuring what it should, so the
+            // suite stops before comparing or storing any numbers.
+            try {
+                results.put(script.getFileName().toString(), measure(source, closureEngine, warmup, runs));
+            } catch (RuntimeException e) {
+                System.err.println("FAILED " + script.getFileName() + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (update) {
+            writeBaseline(baselineFile, results);
+            System.out.println("Baseline written to " + baselineFile);
+            return;
+        }
+
+        Map<String, Result> baseline = Files.exists(baselineFile) ? readBaseline(baselineFile) : Map.of();
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-22s %12s %9s %14s %9s %12s %9s%n",
+                "script (" + engine + ")", "wall ms", "change", "allocated MB", "change", "peak MB", "change"));
+        int regressions = 0;
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result now = entry.getValue();
+            Result base = baseline.get(entry.getKey());
+            List<String> failed = new ArrayList<>();
+            report.append(String.format("%-22s %12.1f %9s %14.1f %9s %12.1f %9s",
+                    entry.getKey(),
+                    now.wallMillis, change(now.wallMillis, base == null ? 0 : base.wallMillis,
+                            timeThreshold, "wall time", failed),
+                    megabytes(now.allocatedBytes), change(now.allocatedBytes, base == null ? 0 : base.allocatedBytes,
+                            allocThreshold, "allocation", failed),
+                    megabytes(now.peakHeapBytes), change(now.peakHeapBytes, base == null ? 0 : base.peakHeapBytes,
+                            peakThreshold, "peak heap", failed)));
+            if (base == null) {
+                report.append("  (no baseline)");
+            } else if (!failed.isEmpty()) {
+                report.append("  REGRESSION: ").append(String.join(", ", failed));
+                regressions++;
+            }
+            report.append('\n');
+        }
+        System.out.print(report);
+        Files.writeString(Paths.get("bench_output.txt"), report, StandardCharsets.UTF_8);
+
+        if (regressions > 0) {
+            System.err.println("*** " + regressions + " script(s) regressed against " + baselineFile + " ***");
+            System.exit(1);
+        }
+    }
+
+    // Runs a script warmup + runs times with fresh globals and its output
+    // discarded, and returns the measurements. Throws if the script does not
+    // parse or any of its statements fails.
+    private static Result measure(String source, boolean closureEngine, int warmup, int runs) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool);
+            }
+        }
+
+        double[] wall = new double[runs];
+        long[] allocated = new long[runs];
+        long[] peak = new long[runs];
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            for (int i = -warmup; i < runs; i++) {
+                System.gc();
+                for (MemoryPoolMXBean pool : heapPools) {
+                    pool.resetPeakUsage();
+                }
+                long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                int errors = Interpreter.run(source, new Environment(), closureEngine);
+                long elapsed = System.nanoTime() - start;
+                long allocatedDuring = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+                if (errors < 0) {
+                    throw new RuntimeException("the script does not parse");
+                } else if (errors > 0) {
+                    throw new RuntimeException(errors + " statement(s) failed");
+                }
+                if (i >= 0) {
+                    wall[i] = elapsed / 1e6;
+                    allocated[i] = allocatedDuring;
+                    for (MemoryPoolMXBean pool : heapPools) {
+                        peak[i] += pool.getPeakUsage().getUsed();
+                    }
+                }
+            }
+        } finally {
+            System.setOut(out);
+        }
+        Arrays.sort(wall);
+        Arrays.sort(allocated);
+        Arrays.sort(peak);
+        return new Result(wall[runs / 2], allocated[runs / 2], peak[runs / 2]);
+    }
+
+    // Formats the change against the baseline and notes it in `failed` if
+    // it is above the threshold, given in percent, when that is not negative.
+    private static String change(double now, double base, double threshold, String metric, List<String> failed) {
+        if (base <= 0) {
+            return "";
+        }
+        double percent = (now - base) * 100 / base;
+        if (threshold >= 0 && percent > threshold) {
+            failed.add(String.format("%s +%.0f%% (limit %.0f%%)", metric, percent, threshold));
+        }
+        return String.format("%+.1f%%", percent);
+    }
+
+    private static double megabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+
+    // One line per script: name, wall milliseconds, allocated bytes and peak
+    // heap bytes.
+    private static void writeBaseline(Path file, Map<String, Result> results) throws IOException {
+        StringBuilder sb = new StringBuilder("# script wall_ms allocated_bytes peak_heap_bytes\n");
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result result = entry.getValue();
+            sb.append(String.format(Locale.ROOT, "%s %.1f %d %d%n", entry.getKey(), result.wallMillis,
+                    result.allocatedBytes, result.peakHeapBytes));
+        }
+        Files.writeString(file, sb, StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, Result> readBaseline(Path file) throws IOException {
+        Map<String, Result> baseline = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split("\\s+");
+            if (line.startsWith("#") || fields.length != 4) {
+                continue;
+            }
+            baseline.put(fields[0], new Result(Double.parseDouble(fields[1]),
+                    Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+        }
+        return baseline;
+    }
+}
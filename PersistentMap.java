@@ -0,0 +1,363 @@
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// An immutable dictionary whose updates return new versions that share all
+// but O(log n) of their structure with the old one, so a snapshot is just
+// the reference. It is a hash array mapped trie: each node takes 5 bits of
+// the key's hash and keeps only the slots in use, packed into an array and
+// found through a 32-bit bitmap. Keys whose whole hashes are equal share a
+// collision node. It is a read-only Map, so it prints and compares like a
+// dictionary.
+public final class PersistentMap extends AbstractMap<Value, Value> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final PersistentMap EMPTY = new PersistentMap(null, 0);
+
+    private final Node root;
+    private final int count;
+
+    private PersistentMap(Node root, int count) {
+        this.root = root;
+        this.count = count;
+    }
+
+    public static PersistentMap of(Map<Value, Value> entries) {
+        if (entries instanceof PersistentMap) {
+            return (PersistentMap) entries;
+        }
+        PersistentMap map = EMPTY;
+        for (Map.Entry<Value, Value> entry : entries.entrySet()) {
+            map = map.plus(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+
+    // Value hashes of small integers differ only in their high bits, so the
+    // hash is mixed before its low bits pick the first slots.
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public Value get(Object key) {
+        return root == null || key == null ? null : (Value) root.find(0, hash(key), key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    // A new version with key mapped to value.
+    public PersistentMap plus(Value key, Value value) {
+        boolean[] added = new boolean[1];
+        Node base = root != null ? root : BitmapNode.EMPTY;
+        Node newRoot = base.put(0, hash(key), key, value, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap(newRoot, added[0] ? count + 1 : count);
+    }
+
+    // A new version without key.
+    public PersistentMap minus(Value key) {
+        if (root == null) {
+            return this;
+        }
+        Node newRoot = root.remove(0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? EMPTY : new PersistentMap(newRoot, count - 1);
+    }
+
+    @Override
+    public Set<Map.Entry<Value, Value>> entrySet() {
+        return new AbstractSet<Map.Entry<Value, Value>>() {
+            @Override
+            public int size() {
+                return count;
+            }
+
+            @Override
+            public Iterator<Map.Entry<Value, Value>> iterator() {
+                return new EntryIterator(root);
+            }
+        };
+    }
+
+    private abstract static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // The value for key, or null.
+        abstract Object find(int shift, int hash, Object key);
+
+        // This node with key mapped to value; this if nothing changed.
+        abstract Node put(int shift, int hash, Value key, Value value, boolean[] added);
+
+        // This node without key; this if it is absent, null if it empties.
+        abstract Node remove(int shift, int hash, Object key);
+
+        // Keys and values alternate; a null key marks a child node in the
+        // value's place.
+        abstract Object[] slots();
+    }
+
+    private static final class BitmapNode extends Node {
+        private static final long serialVersionUID = 1L;
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) {
+                return ((Node) v).find(shift + 5, hash, key);
+            }
+            return key.equals(k) ? v : null;
+        }
+
+        @Override
+        Node put(int shift, int hash, Value key, Value value, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[array.length + 2];
+                System.arraycopy(array, 0, copy, 0, 2 * i);
+                copy[2 * i] = key;
+                copy[2 * i + 1] = value;
+                System.arraycopy(array, 2 * i, copy, 2 * i + 2, array.length - 2 * i);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            Object replacement;
+            Object replacementKey = k;
+            if (k == null) {
+                Node child = ((Node) v).put(shift + 5, hash, key, value, added);
+                if (child == v) {
+                    return this;
+                }
+                replacement = child;
+            } else if (key.equals(k)) {
+                if (value == v) {
+                    return this;
+                }
+                replacement = value;
+            } else {
+                added[0] = true;
+                replacementKey = null;
+                replacement = pair(shift + 5, (Value) k, (Value) v, hash, key, value);
+            }
+            Object[] copy = array.clone();
+            copy[2 * i] = replacementKey;
+            copy[2 * i + 1] = replacement;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int i = index(bit);
+            Object k = array[2 * i];
+            Object v = array[2 * i + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(shift + 5, hash, key);
+                if (child == v) {
+                    return this;
+                }
+                if (child != null) {
+                    Object[] copy = array.clone();
+                    copy[2 * i + 1] = child;
+                    return new BitmapNode(bitmap, copy);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, 2 * i);
+            System.arraycopy(array, 2 * i + 2, copy, 2 * i, array.length - 2 * i - 2);
+            return new BitmapNode(bitmap ^ bit, copy);
+        }
+
+        @Override
+        Object[] slots() {
+            return array;
+        }
+    }
+
+    // Two keys that share a slot at this level: a node one level down that
+    // tells them apart, or a collision node if their hashes are equal.
+    private static Node pair(int shift, Value key1, Value value1, int hash2, Value key2, Value value2) {
+        int hash1 = hash(key1);
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+        }
+        boolean[] added = new boolean[1];
+        return BitmapNode.EMPTY.put(shift, hash1, key1, value1, added).put(shift, hash2, key2, value2, added);
+    }
+
+    private static final class CollisionNode extends Node {
+        private static final long serialVersionUID = 1L;
+
+        final int hash;
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            return i >= 0 ? array[i + 1] : null;
+        }
+
+        @Override
+        Node put(int shift, int hash, Value key, Value value, boolean[] added) {
+            if (hash != this.hash) {
+                // Nest this node under a bitmap node and add the key there.
+                BitmapNode parent = new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[] { null, this });
+                return parent.put(shift, hash, key, value, added);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i + 1] == value) {
+                    return this;
+                }
+                Object[] copy = array.clone();
+                copy[i + 1] = value;
+                return new CollisionNode(hash, copy);
+            }
+            Object[] copy = Arrays.copyOf(array, array.length + 2);
+            copy[array.length] = key;
+            copy[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] copy = new Object[array.length - 2];
+            System.arraycopy(array, 0, copy, 0, i);
+            System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Object[] slots() {
+            return array;
+        }
+    }
+
+    // Depth-first over the trie, keeping the position in each open node.
+    private static final class EntryIterator implements Iterator<Map.Entry<Value, Value>> {
+        private final ArrayDeque<Object[]> nodes = new ArrayDeque<>();
+        private final ArrayDeque<int[]> positions = new ArrayDeque<>();
+        private Map.Entry<Value, Value> next;
+
+        EntryIterator(Node root) {
+            if (root != null) {
+                nodes.push(root.slots());
+                positions.push(new int[1]);
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !nodes.isEmpty()) {
+                Object[] slots = nodes.peek();
+                int[] position = positions.peek();
+                if (position[0] >= slots.length) {
+                    nodes.pop();
+                    positions.pop();
+                    continue;
+                }
+                Object k = slots[position[0]];
+                Object v = slots[position[0] + 1];
+                position[0] += 2;
+                if (k == null) {
+                    nodes.push(((Node) v).slots());
+                    positions.push(new int[1]);
+                } else {
+                    next = new SimpleImmutableEntry<>((Value) k, (Value) v);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<Value, Value> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<Value, Value> entry = next;
+            advance();
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// An immutable vector whose updates return new versions that share all but
+// O(log n) of their structure with the old one, so a snapshot is just the
+// reference. Elements live in a 32-way trie of arrays, filled from the
+// left, plus a tail array of up to 32 elements that appends go to first;
+// index i is found by taking 5 bits of i per level. It is a read-only List,
+// so it prints, indexes and compares like an array.
+public final class PersistentVector extends AbstractList<Value> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    private static final Object[] EMPTY_NODE = new Object[WIDTH];
+
+    public static final PersistentVector EMPTY = new PersistentVector(0, BITS, EMPTY_NODE, new Object[0]);
+
+    private final int count;
+    // Bits of the index handled below the root: 5 for a root of leaves.
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentVector(int count, int shift, Object[] root, Object[] tail) {
+        this.count = count;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    // Builds a vector from a list in O(n): full leaves are grouped into
+    // parents 32 at a time, bottom up.
+    public static PersistentVector of(List<Value> values) {
+        int n = values.size();
+        if (n == 0) {
+            return EMPTY;
+        }
+        int tailSize = ((n - 1) & MASK) + 1;
+        int trieSize = n - tailSize;
+        Object[] tail = values.subList(trieSize, n).toArray();
+        Object[][] level = new Object[trieSize / WIDTH][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = values.subList(i * WIDTH, (i + 1) * WIDTH).toArray();
+        }
+        int shift = BITS;
+        while (level.length > WIDTH) {
+            Object[][] parents = new Object[(level.length + MASK) / WIDTH][];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = Arrays.copyOfRange(level, i * WIDTH, (i + 1) * WIDTH, Object[].class);
+            }
+            level = parents;
+            shift += BITS;
+        }
+        Object[] root = level.length == 0 ? EMPTY_NODE : Arrays.copyOf(level, WIDTH, Object[].class);
+        return new PersistentVector(n, shift, root, tail);
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public Value get(int index) {
+        return (Value) leafFor(index)[index & MASK];
+    }
+
+    // Offset of the first element held in the tail.
+    private int tailOffset() {
+        return count - tail.length;
+    }
+
+    private Object[] leafFor(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + count);
+        }
+        if (index >= tailOffset()) {
+            return tail;
+        }
+        Object[] node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    // A new version with the element at index replaced; index == size()
+    // appends.
+    public PersistentVector with(int index, Value value) {
+        if (index == count) {
+            return plus(value);
+        }
+        if (index < 0 || index > count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + count);
+        }
+        if (index >= tailOffset()) {
+            Object[] newTail = tail.clone();
+            newTail[index & MASK] = value;
+            return new PersistentVector(count, shift, root, newTail);
+        }
+        return new PersistentVector(count, shift, with(shift, root, index, value), tail);
+    }
+
+    private static Object[] with(int level, Object[] node, int index, Value value) {
+        Object[] copy = node.clone();
+        if (level == 0) {
+            copy[index & MASK] = value;
+        } else {
+            int slot = (index >>> level) & MASK;
+            copy[slot] = with(level - BITS, (Object[]) node[slot], index, value);
+        }
+        return copy;
+    }
+
+    // A new version with the value appended.
+    public PersistentVector plus(Value value) {
+        if (tail.length < WIDTH) {
+            Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+            newTail[tail.length] = value;
+            return new PersistentVector(count + 1, shift, root, newTail);
+        }
+        // The tail is full: push it into the trie, growing a level when the
+        // root has no room left.
+        Object[] newRoot;
+        int newShift = shift;
+        if ((count >>> BITS) > (1 << shift)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += BITS;
+        } else {
+            newRoot = pushTail(shift, root, tail);
+        }
+        return new PersistentVector(count + 1, newShift, newRoot, new Object[] { value });
+    }
+
+    private Object[] pushTail(int level, Object[] parent, Object[] leaf) {
+        int slot = ((count - 1) >>> level) & MASK;
+        Object[] copy = parent.clone();
+        if (level == BITS) {
+            copy[slot] = leaf;
+        } else {
+            Object[] child = (Object[]) parent[slot];
+            copy[slot] = child != null ? pushTail(level - BITS, child, leaf) : newPath(level - BITS, leaf);
+        }
+        return copy;
+    }
+
+    private static Object[] newPath(int level, Object[] leaf) {
+        if (level == 0) {
+            return leaf;
+        }
+        Object[] node = new Object[WIDTH];
+        node[0] = newPath(level - BITS, leaf);
+        return node;
+    }
+
+    // A new version without the last element.
+    public PersistentVector dropLast() {
+        if (count == 0) {
+            throw new IllegalStateException("Cannot drop from an empty vector");
+        }
+        if (count == 1) {
+            return EMPTY;
+        }
+        if (tail.length > 1) {
+            return new PersistentVector(count - 1, shift, root, Arrays.copyOf(tail, tail.length - 1));
+        }
+        // The tail empties: the last leaf of the trie becomes the new tail.
+        Object[] newTail = leafFor(count - 2);
+        Object[] newRoot = popTail(shift, root);
+        int newShift = shift;
+        if (newRoot == null) {
+            newRoot = EMPTY_NODE;
+        }
+        if (shift > BITS && newRoot[1] == null) {
+            newRoot = (Object[]) newRoot[0];
+            newShift -= BITS;
+        }
+        return new PersistentVector(count - 1, newShift, newRoot, newTail);
+    }
+
+    private Object[] popTail(int level, Object[] node) {
+        int slot = ((count - 2) >>> level) & MASK;
+        if (level > BITS) {
+            Object[] child = popTail(level - BITS, (Object[]) node[slot]);
+            if (child == null && slot == 0) {
+                return null;
+            }
+            Object[] copy = node.clone();
+            copy[slot] = child;
+            return copy;
+        }
+        if (slot == 0) {
+            return null;
+        }
+        Object[] copy = node.clone();
+        copy[slot] = null;
+        return copy;
+    }
+
+    // Walks a leaf array at a time instead of descending the trie for
+    // every element.
+    @Override
+    public Iterator<Value> iterator() {
+        return new Iterator<Value>() {
+            private int index = 0;
+            private Object[] leaf = count > 0 ? leafFor(0) : null;
+
+            @Override
+            public boolean hasNext() {
+                return index < count;
+            }
+
+            @Override
+            public Value next() {
+                if (index >= count) {
+                    throw new NoSuchElementException();
+                }
+                if (index > 0 && (index & MASK) == 0) {
+                    leaf = leafFor(index);
+                }
+                return (Value) leaf[index++ & MASK];
+            }
+        };
+    }
+}
@@ -0,0 +1,255 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// A lazy chain of map/filter/take stages over a source sequence (an array,
+// range, dictionary, sorted dictionary, persistent vector or dictionary,
+// set, deque, heap, iterator or another pipeline). Nothing runs until a
+// terminal operation pulls values through; the stages are then fused into
+// a single chain of sinks, so each element flows through all of them in one
+// pass without intermediate lists.
+public class Pipeline {
+    // Receives one element; returns false once no more elements are wanted.
+    interface Sink {
+        boolean accept(Value value);
+    }
+
+    abstract static class Stage {
+        abstract Sink wrap(Sink downstream);
+    }
+
+    private final Value source;
+    private final Stage[] stages;
+
+    private Pipeline(Value source, Stage[] stages) {
+        this.source = source;
+        this.stages = stages;
+    }
+
+    public static Pipeline map(Value source, FunctionValue function) {
+        return from(source).then(new Stage() {
+            Sink wrap(Sink downstream) {
+                return value -> downstream.accept(function.call(value));
+            }
+        });
+    }
+
+    public static Pipeline filter(Value source, FunctionValue predicate) {
+        return from(source).then(new Stage() {
+            Sink wrap(Sink downstream) {
+                return value -> !predicate.call(value).asBoolean() || downstream.accept(value);
+            }
+        });
+    }
+
+    public static Pipeline take(Value source, long limit) {
+        return from(source).then(new Stage() {
+            Sink wrap(Sink downstream) {
+                long[] taken = new long[1];
+                return value -> taken[0]++ < limit && downstream.accept(value) && taken[0] < limit;
+            }
+        });
+    }
+
+    // Folds the sequence from the left: fn(fn(initial, a), b) ...
+    public static Value reduce(Value source, FunctionValue function, Value initial) {
+        Value[] result = { initial };
+        forEach(source, value -> {
+            result[0] = function.call(result[0], value);
+            return true;
+        });
+        return result[0];
+    }
+
+    // Sums exactly as a long while all elements are integers, switching to
+    // double on the first non-integer element or on overflow.
+    public static Value sum(Value source) {
+        long[] whole = new long[1];
+        double[] total = new double[1];
+        boolean[] exact = { true };
+        forEach(source, value -> {
+            if (exact[0] && value.isInteger()) {
+                long a = whole[0];
+                long b = value.asLong();
+                long sum = a + b;
+                if (((a ^ sum) & (b ^ sum)) >= 0) {
+                    whole[0] = sum;
+                    return true;
+                }
+            }
+            if (exact[0]) {
+                exact[0] = false;
+                total[0] = whole[0];
+            }
+            total[0] += value.asNumber();
+            return true;
+        });
+        return exact[0] ? Value.ofInteger(whole[0]) : Value.ofNumber(total[0]);
+    }
+
+    public static Value toList(Value source) {
+        List<Value> list = new ArrayList<>();
+        forEach(source, list::add);
+        return Value.ofArray(list);
+    }
+
+    // A new list of the elements in ascending Value.compare order of their
+    // keys: the elements themselves, or key(element), called once for each.
+    // The sort is stable. Integer keys are sorted as primitives.
+    public static Value sort(Value source, FunctionValue key) {
+        List<Value> values = toList(source).asArray();
+        int n = values.size();
+        Value[] keys = new Value[n];
+        boolean integers = true;
+        for (int i = 0; i < n; i++) {
+            Value k = key != null ? key.call(values.get(i)) : values.get(i);
+            keys[i] = k;
+            integers &= k.isInteger();
+        }
+        if (n < 2) {
+            // A single key is never compared, but sorting by a key with no
+            // order is an error however many elements there are.
+            if (n == 1) {
+                Value.requireOrdered(keys[0]);
+            }
+            return Value.ofArray(values);
+        }
+        List<Value> sorted = integers ? sortIntegers(values, keys) : null;
+        if (sorted == null) {
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Value.compare(keys[a], keys[b]));
+            sorted = new ArrayList<>(n);
+            for (Integer i : order) {
+                sorted.add(values.get(i));
+            }
+        }
+        return Value.ofArray(sorted);
+    }
+
+    // Packs each key, less the smallest, above the element's index into one
+    // long and sorts those, which keeps the sort stable without boxing or
+    // comparators. Returns null if the keys span too wide a range for that.
+    private static List<Value> sortIntegers(List<Value> values, Value[] keys) {
+        int n = keys.length;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (Value k : keys) {
+            min = Math.min(min, k.asLong());
+            max = Math.max(max, k.asLong());
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(n - 1);
+        long span = max - min;
+        if (span < 0 || (span >>> (63 - bits)) != 0) {
+            return null;
+        }
+        long[] packed = new long[n];
+        for (int i = 0; i < n; i++) {
+            packed[i] = ((keys[i].asLong() - min) << bits) | i;
+        }
+        Arrays.sort(packed);
+        long mask = (1L << bits) - 1;
+        List<Value> sorted = new ArrayList<>(n);
+        for (long p : packed) {
+            sorted.add(values.get((int) (p & mask)));
+        }
+        return sorted;
+    }
+
+    // Pushes every element of a sequence value into the sink, stopping early
+    // when the sink asks to.
+    public static void forEach(Value source, Sink sink) {
+        if (source.isPipeline()) {
+            source.asPipeline().run(sink);
+        } else if (source.isArray()) {
+            List<Value> list = source.asArray();
+            for (int i = 0; i < list.size(); i++) {
+                if (!sink.accept(list.get(i))) return;
+            }
+        } else if (source.isRange()) {
+            RangeValue range = source.asRange();
+            long count = range.size();
+            for (long i = 0; i < count; i++) {
+                if (!sink.accept(range.valueAt(i))) return;
+            }
+        } else if (source.isIterator()) {
+            Iterator<Value> iterator = source.asIterator();
+            try {
+                while (iterator.hasNext()) {
+                    if (!sink.accept(iterator.next())) return;
+                }
+            } finally {
+                // Releases a file when the loop stops early or fails.
+                if (iterator instanceof AutoCloseable) {
+                    close((AutoCloseable) iterator);
+                }
+            }
+        } else if (source.isDictionary() || source.isSortedDict()) {
+            Map<Value, Value> map = source.isDictionary() ? source.asDictionary() : source.asSortedDict();
+            for (Value key : new ArrayList<>(map.keySet())) {
+                if (!sink.accept(key)) return;
+            }
+        } else if (source.isPVector()) {
+            for (Value value : source.asPVector()) {
+                if (!sink.accept(value)) return;
+            }
+        } else if (source.isPDict()) {
+            // Immutable, so no snapshot of the keys is needed.
+            for (Value key : source.asPDict().keySet()) {
+                if (!sink.accept(key)) return;
+            }
+        } else if (source.isSet() || source.isDeque()) {
+            // Over a snapshot, like dictionaries, so the body may change them.
+            Collection<Value> values = source.isSet() ? source.asSet() : source.asDeque();
+            for (Value value : new ArrayList<>(values)) {
+                if (!sink.accept(value)) return;
+            }
+        } else if (source.isHeap()) {
+            // In the order the elements would be popped, without popping them.
+            for (Value value : source.asHeap().sorted()) {
+                if (!sink.accept(value)) return;
+            }
+        } else {
+            throw new RuntimeException("Cannot iterate over " + source + ".");
+        }
+    }
+
+    private static void close(AutoCloseable resource) {
+        try {
+            resource.close();
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot close " + resource + ": " + e.getMessage());
+        }
+    }
+
+    private static Pipeline from(Value source) {
+        if (source.isPipeline()) {
+            return source.asPipeline();
+        }
+        return new Pipeline(source, new Stage[0]);
+    }
+
+    private Pipeline then(Stage stage) {
+        Stage[] next = Arrays.copyOf(stages, stages.length + 1);
+        next[stages.length] = stage;
+        return new Pipeline(source, next);
+    }
+
+    private void run(Sink sink) {
+        Sink chain = sink;
+        for (int i = stages.length - 1; i >= 0; i--) {
+            chain = stages[i].wrap(chain);
+        }
+        forEach(source, chain);
+    }
+
+    @Override
+    public String toString() {
+        return "<pipeline>";
+    }
+}
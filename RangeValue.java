@@ -0,0 +1,74 @@
+import java.io.Serializable;
+
+// A lazy arithmetic sequence start, start + step, ... up to but excluding
+// end. Elements are computed from their index, so iterating a range never
+// allocates a list and fractional steps do not accumulate rounding errors.
+// A range with an integer start and step produces exact integers.
+public class RangeValue implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public final double start;
+    public final double end;
+    public final double step;
+    private final boolean integral;
+    private final long longStart;
+    private final long longStep;
+
+    public RangeValue(double start, double end, double step) {
+        this.start = start;
+        this.end = end;
+        this.step = step;
+        this.integral = false;
+        this.longStart = 0;
+        this.longStep = 0;
+    }
+
+    public RangeValue(long start, double end, long step) {
+        this.start = start;
+        this.end = end;
+        this.step = step;
+        this.integral = true;
+        this.longStart = start;
+        this.longStep = step;
+    }
+
+    public long size() {
+        double count = Math.ceil((end - start) / step);
+        return count > 0 ? (long) count : 0;
+    }
+
+    public double get(long index) {
+        return start + index * step;
+    }
+
+    public Value valueAt(long index) {
+        if (integral) {
+            return Value.ofInteger(longStart + index * longStep);
+        }
+        return Value.ofNumber(start + index * step);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RangeValue)) return false;
+        RangeValue other = (RangeValue) o;
+        return integral == other.integral
+                && Double.compare(start, other.start) == 0
+                && Double.compare(end, other.end) == 0
+                && Double.compare(step, other.step) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * Double.hashCode(start) + Double.hashCode(end)) + Double.hashCode(step);
+    }
+
+    @Override
+    public String toString() {
+        if (integral) {
+            return "range(" + longStart + ", " + Value.ofNumber(end) + ", " + longStep + ")";
+        }
+        return "range(" + Value.ofNumber(start) + ", " + Value.ofNumber(end) + ", " + Value.ofNumber(step) + ")";
+    }
+}
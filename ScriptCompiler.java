@@ -0,0 +1,485 @@
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+// Compiles a parsed program ahead of time into a runnable jar. The program
+// becomes one class extending CompiledScript, with a static method for each
+// top-level statement, each fun and each for-in loop body, and the JDK
+// compiler turns that into bytecode. The jar also carries the interpreter's
+// own classes, which the compiled code uses as its runtime, so it runs with
+// `java -jar` and HotSpot optimizes the script like ordinary Java code.
+public class ScriptCompiler {
+    // Top-level statements passed to a single CompiledScript.run call, which
+    // keeps main well under the JVM's method size limit.
+    private static final int STATEMENTS_PER_RUN = 500;
+
+    private final String className;
+    private final StringBuilder fields = new StringBuilder();
+    private final StringBuilder methods = new StringBuilder();
+    private int fieldCount = 0;
+    private int methodCount = 0;
+    private int localCount = 0;
+
+    private ScriptCompiler(String className) {
+        this.className = className;
+    }
+
+    // Compiles the statements of the script at scriptPath into a jar.
+    public static void compile(List<Stmt> statements, String scriptPath, String jarPath) throws IOException {
+        String className = classNameFor(scriptPath);
+        String source = new ScriptCompiler(className).generate(statements);
+
+        Path work = Files.createTempDirectory("compile");
+        try {
+            Path sourceFile = work.resolve(className + ".java");
+            Files.writeString(sourceFile, source, StandardCharsets.UTF_8);
+            javac(sourceFile, work);
+            writeJar(work, className, Paths.get(jarPath));
+        } finally {
+            try (Stream<Path> files = Files.walk(work)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static String classNameFor(String scriptPath) {
+        String name = Paths.get(scriptPath).getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        StringBuilder sb = new StringBuilder("Script_");
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static void javac(Path sourceFile, Path outputDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IOException("compiling needs a JDK; no Java compiler is available");
+        }
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        int status = compiler.run(null, errors, errors,
+                "-d", outputDir.toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "-encoding", "UTF-8",
+                "-nowarn",
+                sourceFile.toString());
+        if (status != 0) {
+            throw new IOException("generated code did not compile:\n" + errors.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Writes the generated classes and the runtime classes, taken from
+    // wherever this class was loaded from, into an executable jar.
+    private static void writeJar(Path classes, String mainClass, Path jarPath) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+
+        Path runtime;
+        try {
+            runtime = Paths.get(ScriptCompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("cannot locate the runtime classes: " + e.getMessage());
+        }
+
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(jarPath), manifest)) {
+            addClasses(jar, classes);
+            if (Files.isDirectory(runtime)) {
+                addClasses(jar, runtime);
+            } else {
+                try (JarInputStream in = new JarInputStream(Files.newInputStream(runtime))) {
+                    for (JarEntry entry = in.getNextJarEntry(); entry != null; entry = in.getNextJarEntry()) {
+                        if (entry.getName().endsWith(".class")) {
+                            jar.putNextEntry(new JarEntry(entry.getName()));
+                            in.transferTo(jar);
+                            jar.closeEntry();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addClasses(JarOutputStream jar, Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.toString().endsWith(".class")) {
+                    jar.putNextEntry(new JarEntry(file.getFileName().toString()));
+                    try (InputStream in = Files.newInputStream(file)) {
+                        in.transferTo(jar);
+                    }
+                    jar.closeEntry();
+                }
+            }
+        }
+    }
+
+    // Code generation. Each method has its own scope variables env0, env1,
+    // ... mirroring the Environments the interpreter would create.
+
+    // How a return statement leaves the method being generated: compiled
+    // functions and loop bodies return the value, top-level statements throw
+    // it like the interpreter does.
+    private static final int TOP_LEVEL = 0;
+    private static final int FUNCTION = 1;
+    private static final int LOOP_BODY = 2;
+
+    private String generate(List<Stmt> statements) {
+        StringBuilder main = new StringBuilder();
+        main.append("    public static void main(String[] args) {\n");
+        main.append("        Environment globals = new Environment();\n");
+        for (int i = 0; i < statements.size(); i += STATEMENTS_PER_RUN) {
+            main.append("        run(globals");
+            for (int k = i; k < Math.min(statements.size(), i + STATEMENTS_PER_RUN); k++) {
+                String method = method(statements.get(k), TOP_LEVEL);
+                main.append(", ").append(className).append("::").append(method);
+            }
+            main.append(");\n");
+        }
+        main.append("    }\n");
+
+        return "import java.util.List;\n"
+                + "import java.util.Set;\n"
+                + "\n"
+                + "public final class " + className + " extends CompiledScript {\n"
+                + fields
+                + "\n"
+                + main
+                + methods
+                + "}\n";
+    }
+
+    // Generates a method running one statement in the scope env0 and
+    // returns its name.
+    private String method(Stmt stmt, int kind) {
+        int savedLocals = localCount;
+        localCount = 1;
+        String name = (kind == TOP_LEVEL ? "s" : kind == FUNCTION ? "f" : "b") + methodCount++;
+        StringBuilder body = new StringBuilder();
+        stmt(stmt, "env0", kind, body, 2);
+        StringBuilder out = new StringBuilder();
+        out.append("\n    private static ").append(kind == TOP_LEVEL ? "void " : "Value ")
+                .append(name).append("(Environment env0) {\n");
+        if (kind == TOP_LEVEL) {
+            out.append(body);
+        } else {
+            // `if (true)` keeps javac from rejecting the final return as
+            // unreachable when the body always returns.
+            out.append("        if (true) {\n").append(indent(body)).append("        }\n");
+            out.append(kind == FUNCTION ? "        return Value.ofText(\"\");\n" : "        return null;\n");
+        }
+        out.append("    }\n");
+        methods.append(out);
+        localCount = savedLocals;
+        return name;
+    }
+
+    private static String indent(CharSequence code) {
+        return code.toString().replaceAll("(?m)^(?=.)", "    ");
+    }
+
+    private void line(StringBuilder out, int depth, String code) {
+        for (int i = 0; i < depth; i++) {
+            out.append("    ");
+        }
+        out.append(code).append('\n');
+    }
+
+    private String local(String prefix) {
+        return prefix + localCount++;
+    }
+
+    private String field(String type, String initializer) {
+        String name = "K" + fieldCount++;
+        fields.append("    private static final ").append(type).append(' ').append(name)
+                .append(" = ").append(initializer).append(";\n");
+        return name;
+    }
+
+    // The declared names argument of a new scope, as Stmt.declaredNames.
+    private String declared(Set<String> names) {
+        return names == null ? "" : ", " + field("Set<String>", "Set.of(" + quoteAll(names) + ")");
+    }
+
+    private String returnStatement(int kind, String value) {
+        return kind == TOP_LEVEL ? "throw new Stmt.ReturnException(" + value + ");" : "return " + value + ";";
+    }
+
+    private void stmt(Stmt stmt, String env, int kind, StringBuilder out, int depth) {
+        if (stmt instanceof Stmt.Print) {
+            line(out, depth, "System.out.println(" + expr(((Stmt.Print) stmt).expression, env) + ");");
+        } else if (stmt instanceof Stmt.PrintUpper) {
+            line(out, depth, "System.out.println(" + expr(((Stmt.PrintUpper) stmt).expression, env)
+                    + ".toString().toUpperCase());");
+        } else if (stmt instanceof Stmt.Var) {
+            Stmt.Var var = (Stmt.Var) stmt;
+            line(out, depth, env + ".set(" + quote(var.name) + ", " + expr(var.expression, env) + ");");
+        } else if (stmt instanceof Stmt.Expression) {
+            line(out, depth, "ignore(" + expr(((Stmt.Expression) stmt).expression, env) + ");");
+        } else if (stmt instanceof Stmt.Block) {
+            String inner = local("env");
+            line(out, depth, "{");
+            line(out, depth + 1, "Environment " + inner + " = new Environment(" + env
+                    + declared(((Stmt.Block) stmt).declared) + ");");
+            for (Stmt statement : ((Stmt.Block) stmt).statements) {
+                stmt(statement, inner, kind, out, depth + 1);
+            }
+            line(out, depth, "}");
+        } else if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If) stmt;
+            line(out, depth, "if (" + condition(ifStmt.condition, env) + ") {");
+            stmt(ifStmt.thenBranch, env, kind, out, depth + 1);
+            if (ifStmt.elseBranch != null) {
+                line(out, depth, "} else {");
+                stmt(ifStmt.elseBranch, env, kind, out, depth + 1);
+            }
+            line(out, depth, "}");
+        } else if (stmt instanceof Stmt.While) {
+            Stmt.While whileStmt = (Stmt.While) stmt;
+            line(out, depth, "while (" + condition(whileStmt.condition, env) + ") {");
+            stmt(whileStmt.body, env, kind, out, depth + 1);
+            line(out, depth, "}");
+        } else if (stmt instanceof Stmt.ForIn) {
+            forIn((Stmt.ForIn) stmt, env, kind, out, depth);
+        } else if (stmt instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) stmt;
+            Set<String> free = FreeVariables.of(function.parameters, function.body);
+            String parameters = field("List<String>", "List.of(" + quoteAll(function.parameters) + ")");
+            String captured = free == null ? "null" : field("Set<String>", "Set.of(" + quoteAll(free) + ")");
+            String method = method(function.body.parsed(), FUNCTION);
+            line(out, depth, "declare(" + env + ", " + quote(function.name) + ", " + parameters + ", "
+                    + captured + ", " + className + "::" + method + ");");
+        } else if (stmt instanceof Stmt.Return) {
+            Expr value = ((Stmt.Return) stmt).value;
+            String result = value != null ? expr(value, env) : "Value.ofText(\"\")";
+            line(out, depth, "if (true) " + returnStatement(kind, result));
+        } else if (stmt instanceof Stmt.Import) {
+            // Modules are not compiled in; the jar loads them when it runs.
+            Stmt.Import module = (Stmt.Import) stmt;
+            String file = module.file != null ? module.file : Modules.resolve(module.path);
+            line(out, depth, env + ".define(" + quote(module.name) + ", Modules.load(" + quote(file) + ", true));");
+        } else {
+            throw new IllegalStateException("Cannot compile " + stmt.getClass().getSimpleName());
+        }
+    }
+
+    // Arrays and ranges are walked inline like Stmt.ForIn does; the body is
+    // its own method so it is generated once for all three cases.
+    private void forIn(Stmt.ForIn forIn, String env, int kind, StringBuilder out, int depth) {
+        String source = local("source");
+        String loopEnv = local("env");
+        String slot = local("slot");
+        String returned = local("returned");
+        String i = local("i");
+        String iterable = expr(forIn.iterable, env);
+        String body = method(forIn.body, LOOP_BODY);
+
+        line(out, depth, "{");
+        line(out, depth + 1, "Value " + source + " = " + iterable + ";");
+        line(out, depth + 1, "Environment " + loopEnv + " = new Environment(" + env
+                + declared(forIn.declared) + ");");
+        line(out, depth + 1, "Environment.Binding " + slot + " = " + loopEnv + ".bind("
+                + quote(forIn.name) + ", Value.ofText(\"\"));");
+        line(out, depth + 1, "Value " + returned + " = null;");
+        line(out, depth + 1, "if (" + source + ".isArray()) {");
+        line(out, depth + 2, "List<Value> list = " + source + ".asArray();");
+        line(out, depth + 2, "for (int " + i + " = 0; " + returned + " == null && " + i + " < list.size(); "
+                + i + "++) {");
+        line(out, depth + 3, slot + ".value = list.get(" + i + ");");
+        line(out, depth + 3, returned + " = " + body + "(" + loopEnv + ");");
+        line(out, depth + 2, "}");
+        line(out, depth + 1, "} else if (" + source + ".isRange()) {");
+        line(out, depth + 2, "RangeValue range = " + source + ".asRange();");
+        line(out, depth + 2, "long count = range.size();");
+        line(out, depth + 2, "for (long " + i + " = 0; " + returned + " == null && " + i + " < count; "
+                + i + "++) {");
+        line(out, depth + 3, slot + ".value = range.valueAt(" + i + ");");
+        line(out, depth + 3, returned + " = " + body + "(" + loopEnv + ");");
+        line(out, depth + 2, "}");
+        line(out, depth + 1, "} else {");
+        line(out, depth + 2, returned + " = forEach(" + source + ", " + slot + ", " + loopEnv + ", "
+                + className + "::" + body + ");");
+        line(out, depth + 1, "}");
+        line(out, depth + 1, "if (" + returned + " != null) " + returnStatement(kind, returned));
+        line(out, depth, "}");
+    }
+
+    // A Java boolean expression for a condition, without boxing comparisons
+    // and logical operators into Values.
+    private String condition(Expr expr, String env) {
+        if (expr instanceof Logical) {
+            Logical logical = (Logical) expr;
+            String operator = logical.operator.type == TokenType.OR ? " || " : " && ";
+            return "(" + condition(logical.left, env) + operator + condition(logical.right, env) + ")";
+        }
+        if (expr instanceof Unary && ((Unary) expr).operator.type == TokenType.BANG) {
+            return "!" + condition(((Unary) expr).right, env);
+        }
+        if (expr instanceof Binary) {
+            Binary binary = (Binary) expr;
+            String left = expr(binary.left, env);
+            String right = expr(binary.right, env);
+            switch (binary.operator.type) {
+                case LESS:
+                case LESS_EQUAL:
+                case GREATER:
+                case GREATER_EQUAL:
+                    return "Binary.compare(TokenType." + binary.operator.type + ", " + left + ", " + right + ")";
+                case EQUAL_EQUAL:
+                    return "Binary.equalsValue(" + left + ", " + right + ")";
+                case BANG_EQUAL:
+                    return "!Binary.equalsValue(" + left + ", " + right + ")";
+                default:
+                    break;
+            }
+        }
+        return expr(expr, env) + ".asBoolean()";
+    }
+
+    private String expr(Expr expr, String env) {
+        if (expr instanceof Literal) {
+            return field("Value", literal(((Literal) expr).value));
+        } else if (expr instanceof Variable) {
+            return env + ".get(" + quote(((Variable) expr).name) + ")";
+        } else if (expr instanceof Binary) {
+            Binary binary = (Binary) expr;
+            String left = expr(binary.left, env);
+            String right = expr(binary.right, env);
+            switch (binary.operator.type) {
+                case PLUS: return "Binary.add(" + left + ", " + right + ")";
+                case MINUS: return "Binary.subtract(" + left + ", " + right + ")";
+                case STAR: return "Binary.multiply(" + left + ", " + right + ")";
+                case SLASH: return "Binary.divide(" + left + ", " + right + ")";
+                default: return "Value.ofBoolean(" + condition(expr, env) + ")";
+            }
+        } else if (expr instanceof Logical) {
+            return "Value.ofBoolean(" + condition(expr, env) + ")";
+        } else if (expr instanceof Unary) {
+            Unary unary = (Unary) expr;
+            switch (unary.operator.type) {
+                case MINUS: return "Unary.negate(" + expr(unary.right, env) + ")";
+                case BANG: return "Value.ofBoolean(" + condition(expr, env) + ")";
+                default: return expr(unary.right, env);
+            }
+        } else if (expr instanceof ArrayLiteral) {
+            return "array(" + exprs(((ArrayLiteral) expr).elements, env) + ")";
+        } else if (expr instanceof ArrayAccess) {
+            ArrayAccess access = (ArrayAccess) expr;
+            return "ArrayAccess.get(ArrayAccess.elements(" + expr(access.arrayExpr, env) + "), "
+                    + expr(access.indexExpr, env) + ")";
+        } else if (expr instanceof DictionaryLiteral) {
+            StringBuilder pairs = new StringBuilder();
+            for (Map.Entry<Expr, Expr> entry : ((DictionaryLiteral) expr).pairs.entrySet()) {
+                if (pairs.length() > 0) {
+                    pairs.append(", ");
+                }
+                pairs.append(expr(entry.getKey(), env)).append(", ").append(expr(entry.getValue(), env));
+            }
+            return "dictionary(" + pairs + ")";
+        } else if (expr instanceof Get) {
+            return "Get.member(" + expr(((Get) expr).object, env) + ", " + quote(((Get) expr).name) + ")";
+        } else if (expr instanceof Call) {
+            Call call = (Call) expr;
+            String function = "Call.function(" + expr(call.callee, env) + ", " + call.arguments.size() + ")";
+            String arguments = exprs(call.arguments, env);
+            return "invoke(" + env + ", " + function + (arguments.isEmpty() ? "" : ", " + arguments) + ")";
+        } else if (expr instanceof NativeCall) {
+            NativeCall call = (NativeCall) expr;
+            String function = field("NativeFunction", "NativeFunction.lookup(" + quote(call.function.name) + ")");
+            String arguments = exprs(call.arguments, env);
+            if (call.function.usesScope()) {
+                return function + ".callInScope(" + env + ", new Value[] {" + arguments + "})";
+            }
+            switch (call.arguments.size()) {
+                case 0: return function + ".call0()";
+                case 1: return function + ".call1(" + arguments + ")";
+                case 2: return function + ".call2(" + arguments + ")";
+                case 3: return function + ".call3(" + arguments + ")";
+                default: return function + ".call(new Value[] {" + arguments + "})";
+            }
+        }
+        throw new IllegalStateException("Cannot compile " + expr.getClass().getSimpleName());
+    }
+
+    private String exprs(List<Expr> expressions, String env) {
+        StringBuilder sb = new StringBuilder();
+        for (Expr expr : expressions) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(expr(expr, env));
+        }
+        return sb.toString();
+    }
+
+    private static String literal(Value value) {
+        if (value.isInteger()) {
+            return "Value.ofInteger(" + value.asLong() + "L, " + quoteOrNull(value.literal()) + ")";
+        } else if (value.isNumber()) {
+            long bits = Double.doubleToRawLongBits(value.asNumber());
+            return "Value.ofNumber(Double.longBitsToDouble(0x" + Long.toHexString(bits) + "L), "
+                    + quoteOrNull(value.literal()) + ")";
+        } else if (value.isBoolean()) {
+            return "Value.ofBoolean(" + value.asBoolean() + ")";
+        } else if (value.isText()) {
+            return "Value.ofText(" + quote(value.asText()) + ")";
+        }
+        throw new IllegalStateException("Cannot compile a literal " + value);
+    }
+
+    private static String quoteAll(Iterable<String> strings) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : strings) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(quote(s));
+        }
+        return sb.toString();
+    }
+
+    private static String quoteOrNull(String s) {
+        return s == null ? "null" : quote(s);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                // Octal, since javac would turn a \\u escape of a line break
+                // into a real one before reading the string.
+                sb.append(String.format("\\%03o", (int) c));
+            } else if (c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
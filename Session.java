@@ -0,0 +1,180 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// An interactive session that keeps its global Environment between
+// submissions. The submitted text is split into top-level statements; each
+// distinct statement text is lexed and parsed once, and a submission only
+// executes the statements from the first one that is new or was edited.
+public class Session {
+    private Environment globals = new Environment();
+    private final List<String> executed = new ArrayList<>();
+    private final Map<String, List<Stmt>> parseCache = new HashMap<>();
+    // The names the submitted code binds, which decide whether a call is
+    // bound to a built-in function; see Parser.boundNames.
+    private Set<String> bound = new HashSet<>();
+
+    public Environment getGlobals() {
+        return globals;
+    }
+
+    // Drops all state, so the next submission runs from scratch.
+    public void reset() {
+        globals = new Environment();
+        executed.clear();
+        parseCache.clear();
+        bound = new HashSet<>();
+    }
+
+    // Runs whatever part of the code has not been run yet in this session.
+    // Returns the number of top-level chunks that were executed.
+    public int submit(String code) {
+        List<String> chunks = split(code);
+        Set<String> names = boundNames(chunks);
+        if (!names.equals(bound)) {
+            // A call may now mean a different function, so everything is
+            // parsed and run again.
+            bound = names;
+            parseCache.clear();
+            executed.clear();
+        }
+        List<String> sources = new ArrayList<>();
+        List<List<Stmt>> programs = new ArrayList<>();
+        String error = null;
+
+        int i = 0;
+        while (i < chunks.size()) {
+            String text = chunks.get(i++);
+            List<Stmt> statements = null;
+            while (true) {
+                try {
+                    statements = parse(text);
+                    break;
+                } catch (Parser.ParseException e) {
+                    // A statement may continue on the next line (for example an
+                    // if whose body is on its own line), so retry with it joined.
+                    if (i < chunks.size()) {
+                        text = text + "\n" + chunks.get(i++);
+                    } else {
+                        error = e.getMessage();
+                        break;
+                    }
+                }
+            }
+            if (statements == null) {
+                break;
+            }
+            sources.add(text);
+            programs.add(statements);
+        }
+
+        int first = 0;
+        while (first < sources.size() && first < executed.size()
+                && sources.get(first).equals(executed.get(first))) {
+            first++;
+        }
+        executed.subList(first, executed.size()).clear();
+        // Only keep parse results for statements that are still in the text.
+        parseCache.keySet().retainAll(new HashSet<>(sources));
+        for (int k = first; k < sources.size(); k++) {
+            for (Stmt stmt : programs.get(k)) {
+                try {
+                    stmt.execute(globals);
+                } catch (RuntimeException e) {
+                    System.err.println("Execution Error: " + e.getMessage());
+                }
+            }
+            executed.add(sources.get(k));
+        }
+        if (error != null) {
+            System.err.println("Parse Error: " + error);
+        }
+        return sources.size() - first;
+    }
+
+    private List<Stmt> parse(String text) throws Parser.ParseException {
+        List<Stmt> statements = parseCache.get(text);
+        if (statements == null) {
+            Lexer lexer = new Lexer(text);
+            Parser parser = new Parser(lexer.scanTokens(), false, bound);
+            statements = parser.parseProgram();
+            parseCache.put(text, statements);
+        }
+        return statements;
+    }
+
+    private static Set<String> boundNames(List<String> chunks) {
+        Set<String> names = new HashSet<>();
+        for (String chunk : chunks) {
+            names.addAll(Parser.boundNames(new Lexer(chunk).scanTokens()));
+        }
+        return names;
+    }
+
+    // Splits source text into candidate top-level statements at line ends
+    // where no bracket or string is open and the next line does not obviously
+    // continue the current one. Candidates that do not parse on their own are
+    // joined with the following ones by submit().
+    static List<String> split(String code) {
+        String[] lines = code.split("\n", -1);
+        List<String> chunks = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder();
+        int depth = 0;
+        boolean inString = false;
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            for (int j = 0; j < line.length(); j++) {
+                char c = line.charAt(j);
+                if (c == '"') {
+                    inString = !inString;
+                } else if (!inString) {
+                    if (c == '(' || c == '[' || c == '{') depth++;
+                    if (c == ')' || c == ']' || c == '}') depth--;
+                }
+            }
+            if (chunk.length() > 0) chunk.append('\n');
+            chunk.append(line);
+            if (depth <= 0 && !inString && !continues(line, nextNonBlank(lines, i + 1))) {
+                String text = chunk.toString().strip();
+                if (!text.isEmpty()) {
+                    chunks.add(text);
+                }
+                chunk.setLength(0);
+                depth = 0;
+            }
+        }
+        String rest = chunk.toString().strip();
+        if (!rest.isEmpty()) {
+            chunks.add(rest);
+        }
+        return chunks;
+    }
+
+    private static String nextNonBlank(String[] lines, int from) {
+        for (int i = from; i < lines.length; i++) {
+            if (!lines[i].isBlank()) {
+                return lines[i].strip();
+            }
+        }
+        return "";
+    }
+
+    private static boolean continues(String line, String next) {
+        String current = line.strip();
+        if (current.isEmpty()) {
+            return false;
+        }
+        char last = current.charAt(current.length() - 1);
+        if ("+-*/=<>!,".indexOf(last) >= 0 || current.endsWith(" and") || current.endsWith(" or")) {
+            return true;
+        }
+        if (next.isEmpty()) {
+            return false;
+        }
+        return next.matches("(else|and|or)\\b.*") || next.startsWith("==") || next.startsWith("!=")
+                || "+*/<>,)]}".indexOf(next.charAt(0)) >= 0;
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.LinkedHashSet;
+
+// A mutable set of values, hashed on Value's equality, so adding, removing
+// and testing membership are O(1). It keeps insertion order, so a set
+// prints and iterates the same way on every run.
+public class SetValue extends LinkedHashSet<Value> {
+    private static final long serialVersionUID = 1L;
+
+    public SetValue() {
+    }
+
+    public SetValue(Iterable<Value> values) {
+        for (Value value : values) {
+            add(value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Value value : this) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            value.appendTo(sb);
+        }
+        return sb.append('}').toString();
+    }
+}
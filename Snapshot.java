@@ -0,0 +1,108 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Saves a global Environment to a binary image and restores it, so a large
+// prelude can be run once and then loaded at startup instead of being lexed,
+// parsed and executed again. The image holds the whole reachable graph:
+// functions with their syntax trees and closures, arrays and dictionaries,
+// with shared and cyclic references kept intact. Native functions are
+// stored by name. Lazy values (pipelines, iterators) cannot be stored.
+public class Snapshot {
+    private static final int MAGIC = 0x494D4731; // "IMG1"
+
+    // Restoring an image must not construct arbitrary classes, so only the
+    // interpreter's own classes and the plain data classes it is built from
+    // are read: java.util collections, strings, boxed primitives, enums,
+    // the serialized form of the sorted dictionary comparator, and arrays
+    // of those and of Object.
+    private static final ObjectInputFilter FILTER = info -> {
+        Class<?> type = info.serialClass();
+        if (type == null) {
+            return ObjectInputFilter.Status.UNDECIDED;
+        }
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        return allowed(type) ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED;
+    };
+
+    private static boolean allowed(Class<?> type) {
+        String pkg = type.getPackageName();
+        return type.isPrimitive()
+                || pkg.isEmpty()
+                || pkg.equals("java.util")
+                || type == Object.class || type == String.class || type == Enum.class || type == Number.class
+                || type == Long.class || type == Integer.class || type == Double.class || type == Boolean.class
+                || type == java.lang.invoke.SerializedLambda.class;
+    }
+
+    public static void save(Environment globals, String path) throws IOException {
+        try (OutputStream file = Files.newOutputStream(Path.of(path));
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            data.writeInt(MAGIC);
+            ObjectOutputStream out = new ObjectOutputStream(data);
+            out.writeObject(globals);
+            out.flush();
+        } catch (NotSerializableException e) {
+            throw new IOException("value cannot be stored in a snapshot: " + e.getMessage());
+        }
+    }
+
+    // Maps the image into memory and reads the environment straight from it.
+    public static Environment load(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+                throw new IOException(path + " is not a snapshot image.");
+            }
+            ObjectInputStream in = new ObjectInputStream(new BufferInputStream(buffer));
+            in.setObjectInputFilter(FILTER);
+            return (Environment) in.readObject();
+        } catch (InvalidClassException e) {
+            throw new IOException(path + " holds a class a snapshot may not contain: " + e.getMessage());
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException(path + " was written by an incompatible version: " + e.getMessage());
+        }
+    }
+
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// A mutable dictionary kept in ascending key order by Value.compare, which
+// agrees with Value.equals, so keys that are equal as dictionary keys are
+// the same key here too. It is a red-black tree: lookups and updates are
+// O(log n), and it answers floor, ceiling and range queries, which a hash
+// dictionary cannot. It prints, iterates and compares in key order.
+public class SortedDictValue extends TreeMap<Value, Value> {
+    private static final long serialVersionUID = 1L;
+
+    private static final Comparator<Value> ORDER = (Comparator<Value> & Serializable) Value::compare;
+
+    public SortedDictValue() {
+        super(ORDER);
+    }
+
+    // A copy of entries that are already in this order, built in O(n).
+    public SortedDictValue(SortedMap<Value, Value> entries) {
+        super(entries);
+    }
+
+    // A key that cannot be ordered against the keys here is simply not one
+    // of them, rather than an error.
+    @Override
+    public boolean containsKey(Object key) {
+        return orderable(key) && super.containsKey(key);
+    }
+
+    @Override
+    public Value get(Object key) {
+        return orderable(key) ? super.get(key) : null;
+    }
+
+    @Override
+    public Value remove(Object key) {
+        return orderable(key) ? super.remove(key) : null;
+    }
+
+    @Override
+    public Value floorKey(Value key) {
+        return orderable(key) ? super.floorKey(key) : null;
+    }
+
+    @Override
+    public Value ceilingKey(Value key) {
+        return orderable(key) ? super.ceilingKey(key) : null;
+    }
+
+    // Whether key can be compared with the keys already here. They are all
+    // numbers or all texts, so the first one stands for the rest.
+    private boolean orderable(Object key) {
+        if (!(key instanceof Value)) {
+            return false;
+        }
+        Value k = (Value) key;
+        if (!k.isNumber() && !k.isText()) {
+            return false;
+        }
+        return isEmpty() || k.isNumber() == firstKey().isNumber();
+    }
+
+    // Entry by entry in key order with Value.equals, which never throws;
+    // equal dictionaries hold equal keys in the same order.
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SortedDictValue)) return false;
+        SortedDictValue other = (SortedDictValue) o;
+        if (size() != other.size()) return false;
+        Iterator<Map.Entry<Value, Value>> mine = entrySet().iterator();
+        for (Map.Entry<Value, Value> theirs : other.entrySet()) {
+            Map.Entry<Value, Value> entry = mine.next();
+            if (!entry.getKey().equals(theirs.getKey()) || !entry.getValue().equals(theirs.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    // The entries with lo <= key < hi.
+    public SortedDictValue range(Value lo, Value hi) {
+        if (Value.compare(lo, hi) >= 0) {
+            return new SortedDictValue();
+        }
+        return new SortedDictValue(subMap(lo, true, hi, false));
+    }
+}
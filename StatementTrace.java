@@ -0,0 +1,81 @@
+import java.io.PrintStream;
+import java.util.Arrays;
+
+// A ring buffer of the most recently executed statements, dumped when a
+// statement fails so the error comes with the path that led to it. It is
+// enabled with -Dinterpreter.trace=<statements>, rounded up to a power of
+// two. The size is fixed when the class loads, so when tracing is off the
+// JIT removes the recording altogether; when on, it is one array store per
+// statement. Threads running functions in parallel share the buffer without
+// locking, so their entries may interleave or, rarely, overwrite each other.
+final class StatementTrace {
+    private static final Stmt[] RING = create(Integer.getInteger("interpreter.trace", 0));
+    private static int next;
+
+    private StatementTrace() {
+    }
+
+    private static Stmt[] create(int capacity) {
+        if (capacity <= 0) {
+            return null;
+        }
+        return new Stmt[Integer.highestOneBit(Math.max(1, capacity - 1)) << 1];
+    }
+
+    static void record(Stmt stmt) {
+        if (RING != null) {
+            RING[next++ & (RING.length - 1)] = stmt;
+        }
+    }
+
+    // Prints the recorded statements, oldest first, with their line numbers
+    // in the given source.
+    static void dump(CharSequence source, PrintStream out) {
+        Stmt[] r = RING;
+        if (r == null || next == 0) {
+            return;
+        }
+        int count = Math.min(next, r.length);
+        int[] lineStarts = lineStarts(source);
+        out.println("Last " + count + " statements executed:");
+        for (int i = next - count; i < next; i++) {
+            Stmt stmt = r[i & (r.length - 1)];
+            if (stmt instanceof ClosureCompiler.Compiled) {
+                stmt = ((ClosureCompiler.Compiled) stmt).source;
+            }
+            String where = stmt.offset >= 0 ? "line " + lineOf(lineStarts, stmt.offset) : "line ?";
+            out.println("  " + where + ": " + describe(stmt));
+        }
+    }
+
+    private static int[] lineStarts(CharSequence source) {
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    private static int lineOf(int[] lineStarts, int offset) {
+        int index = Arrays.binarySearch(lineStarts, offset);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    private static String describe(Stmt stmt) {
+        String kind = stmt.getClass().getSimpleName();
+        if (stmt instanceof Stmt.Var) {
+            return kind + " " + ((Stmt.Var) stmt).name;
+        } else if (stmt instanceof Stmt.Function) {
+            return kind + " " + ((Stmt.Function) stmt).name;
+        } else if (stmt instanceof Stmt.ForIn) {
+            return kind + " " + ((Stmt.ForIn) stmt).name;
+        }
+        return kind;
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Standard input for scripts: input() reads one line, on_lines() streams all
+// remaining lines to a script function in batches. Prompts are only shown
+// when a console is attached, so the interpreter can sit in a Unix pipeline.
+class StdIn {
+    private static final int BUFFER = 1 << 16;
+    // Batches read ahead of the script; when they are all waiting, the reader
+    // stops, the pipe fills up and the upstream process is held back.
+    private static final int READ_AHEAD = 2;
+    private static final List<Value> END = new ArrayList<>();
+
+    private static BufferedReader reader;
+
+    static void registerAll() {
+        NativeFunction.register("input", "prompt", StdIn::input);
+        NativeFunction.register("on_lines", "function, batch_size",
+                (fn, size) -> onLines(fn.asFunction(), (int) size.asLong()));
+    }
+
+    private static synchronized BufferedReader reader() {
+        if (reader == null) {
+            reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), BUFFER);
+        }
+        return reader;
+    }
+
+    // Returns the next line of standard input, or empty text at its end.
+    static Value input(Value prompt) {
+        if (System.console() != null) {
+            System.out.print(prompt);
+            System.out.flush();
+        }
+        try {
+            String line = reader().readLine();
+            return Value.ofText(line == null ? "" : line);
+        } catch (IOException e) {
+            throw new RuntimeException("input: " + e.getMessage());
+        }
+    }
+
+    // Calls fn with arrays of up to batchSize lines until standard input is
+    // exhausted. A reader thread fills a small bounded queue, so reading
+    // overlaps with the script but never runs far ahead of it. Returns the
+    // number of lines processed.
+    static Value onLines(FunctionValue fn, int batchSize) {
+        if (batchSize < 1) {
+            throw new RuntimeException("on_lines: batch_size must be at least 1.");
+        }
+        BlockingQueue<List<Value>> queue = new ArrayBlockingQueue<>(READ_AHEAD);
+        RuntimeException[] failure = new RuntimeException[1];
+        Thread producer = new Thread(() -> {
+            try {
+                BufferedReader in = reader();
+                List<Value> batch = new ArrayList<>(batchSize);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    batch.add(Value.ofText(line));
+                    if (batch.size() == batchSize) {
+                        queue.put(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    queue.put(batch);
+                }
+            } catch (IOException e) {
+                failure[0] = new RuntimeException("on_lines: " + e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                queue.put(END);
+            } catch (InterruptedException ignored) {
+                // The consumer has gone away.
+            }
+        }, "on_lines reader");
+        producer.setDaemon(true);
+        producer.start();
+
+        long lines = 0;
+        try {
+            while (true) {
+                List<Value> batch = queue.take();
+                if (batch == END) {
+                    break;
+                }
+                lines += batch.size();
+                fn.call(Value.ofArray(batch));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("on_lines interrupted.");
+        } finally {
+            producer.interrupt();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return Value.ofInteger(lines);
+    }
+}
@@ -1,9 +1,52 @@
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+
+public abstract class Stmt implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Source offset of the statement's first token, or -1 if not known.
+    int offset = -1;
 
-public abstract class Stmt {
     public abstract void execute(Environment env);
 
+    // The names statements running directly in one scope may define there:
+    // the functions they declare and the variables they assign, also in
+    // branches and loop bodies that are not blocks of their own. Returns
+    // null if there are none. Closures use it to tell which names they must
+    // not resolve before they run.
+    static Set<String> declaredNames(List<Stmt> statements) {
+        Set<String> names = new HashSet<>();
+        for (Stmt stmt : statements) {
+            declaredNames(stmt, names);
+        }
+        return names.isEmpty() ? null : names;
+    }
+
+    private static void declaredNames(Stmt stmt, Set<String> names) {
+        if (stmt instanceof Function) {
+            names.add(((Function) stmt).name);
+        } else if (stmt instanceof Var) {
+            names.add(((Var) stmt).name);
+        } else if (stmt instanceof If) {
+            If ifStmt = (If) stmt;
+            if (!(ifStmt.thenBranch instanceof Block)) {
+                declaredNames(ifStmt.thenBranch, names);
+            }
+            if (ifStmt.elseBranch != null && !(ifStmt.elseBranch instanceof Block)) {
+                declaredNames(ifStmt.elseBranch, names);
+            }
+        } else if (stmt instanceof While && !(((While) stmt).body instanceof Block)) {
+            declaredNames(((While) stmt).body, names);
+        }
+    }
+
     public static class Print extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         public final Expr expression;
 
         public Print(Expr expression) {
@@ -18,6 +61,8 @@ public abstract class Stmt {
     }
 
     public static class PrintUpper extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         public final Expr expression;
     public PrintUpper(Expr expression) {
             this.expression = expression;
@@ -32,6 +77,8 @@ public abstract class Stmt {
   
 
     public static class Var extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         public final String name;
         public final Expr expression;
 
@@ -42,17 +89,13 @@ public abstract class Stmt {
 
         @Override
         public void execute(Environment env) {
-            Value value = expression.evaluate(env);
-            try {
-                env.get(name);
-                env.assign(name, value);
-            } catch (RuntimeException ex) {
-                env.define(name, value);
-            }
+            env.set(name, expression.evaluate(env));
         }
     }
 
     public static class Expression extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         public final Expr expression;
 
         public Expression(Expr expression) {
@@ -66,22 +109,105 @@ public abstract class Stmt {
     }
 
     public static class Block extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         public final List<Stmt> statements;
+        final Set<String> declared;
 
         public Block(List<Stmt> statements) {
             this.statements = statements;
+            this.declared = statements != null ? declaredNames(statements) : null;
         }
 
         @Override
         public void execute(Environment env) {
-            Environment localEnv = new Environment(env);
+            Environment localEnv = new Environment(env, declared);
             for (Stmt stmt : statements) {
+                StatementTrace.record(stmt);
                 stmt.execute(localEnv);
             }
         }
+
+        // The statements of this block, parsing them first if it is lazy.
+        public Block parsed() {
+            return this;
+        }
+    }
+
+    // A function body the parser only skimmed for its closing brace. The
+    // tokens are parsed into a Block the first time the body is needed, so
+    // functions that never run are never parsed; errors in the body are
+    // reported then.
+    public static class LazyBlock extends Block {
+        private static final long serialVersionUID = 1L;
+
+        private final String function;
+        private final transient List<Token> tokens;
+        // The names the whole program binds, see Parser.boundNames.
+        private final transient Set<String> bound;
+        private final int open;
+        private final int end;
+        private volatile Block parsed;
+
+        LazyBlock(String function, List<Token> tokens, Set<String> bound, int open, int end) {
+            super(null);
+            this.function = function;
+            this.tokens = tokens;
+            this.bound = bound;
+            this.open = open;
+            this.end = end;
+        }
+
+        @Override
+        public void execute(Environment env) {
+            parsed().execute(env);
+        }
+
+        @Override
+        public Block parsed() {
+            Block block = parsed;
+            if (block == null) {
+                synchronized (this) {
+                    block = parsed;
+                    if (block == null) {
+                        try {
+                            block = new Parser(tokens, true, bound).parseBlock(open);
+                        } catch (Parser.ParseException e) {
+                            throw new RuntimeException("Parse Error in function " + function + ": " + e.getMessage());
+                        }
+                        parsed = block;
+                    }
+                }
+            }
+            return block;
+        }
+
+        // Every identifier in the body, a superset of the names it can
+        // refer to, found without parsing it.
+        Set<String> identifiers() {
+            Set<String> names = new HashSet<>();
+            for (int i = open; i < end; i++) {
+                Token token = tokens.get(i);
+                if (token.type == TokenType.IDENTIFIER) {
+                    names.add(token.lexeme);
+                }
+            }
+            return names;
+        }
+
+        // A snapshot stores the parsed body rather than the tokens.
+        private Object writeReplace() throws ObjectStreamException {
+            try {
+                return parsed();
+            } catch (RuntimeException e) {
+                throw new NotSerializableException(e.getMessage());
+            }
+        }
     }
 
     public static class If extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         public final Expr condition;
         public final Stmt thenBranch;
         public final Stmt elseBranch;
@@ -94,7 +220,7 @@ public abstract class Stmt {
 
         @Override
         public void execute(Environment env) {
-            if (condition.evaluate(env).asBoolean()) {
+            if (condition.isTrue(env)) {
                 thenBranch.execute(env);
             } else if (elseBranch != null) {
                 elseBranch.execute(env);
@@ -103,6 +229,8 @@ public abstract class Stmt {
     }
 
     public static class While extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         public final Expr condition;
         public final Stmt body;
 
@@ -113,16 +241,71 @@ public abstract class Stmt {
 
         @Override
         public void execute(Environment env) {
-            while (condition.evaluate(env).asBoolean()) {
+            while (condition.isTrue(env)) {
                 body.execute(env);
             }
         }
     }
 
+    // for name in iterable body. Arrays are walked by index, dictionaries
+    // over a snapshot of their keys, ranges are counted natively without
+    // ever building a list, and pipelines are run as a single fused pass.
+    // The loop variable is a single slot in a scope around the loop and is
+    // overwritten on each step.
+    public static class ForIn extends Stmt {
+        private static final long serialVersionUID = 1L;
+
+        public final String name;
+        public final Expr iterable;
+        public final Stmt body;
+        // What a body that is not a block may define in the loop's scope.
+        final Set<String> declared;
+
+        public ForIn(String name, Expr iterable, Stmt body) {
+            this.name = name;
+            this.iterable = iterable;
+            this.body = body;
+            this.declared = body instanceof Block ? null : declaredNames(List.of(body));
+        }
+
+        @Override
+        public void execute(Environment env) {
+            Value source = iterable.evaluate(env);
+            Environment loopEnv = new Environment(env, declared);
+            Environment.Binding slot = loopEnv.bind(name, Value.ofText(""));
+            if (source.isArray()) {
+                List<Value> list = source.asArray();
+                for (int i = 0; i < list.size(); i++) {
+                    slot.value = list.get(i);
+                    body.execute(loopEnv);
+                }
+            } else if (source.isRange()) {
+                RangeValue range = source.asRange();
+                long count = range.size();
+                for (long i = 0; i < count; i++) {
+                    slot.value = range.valueAt(i);
+                    body.execute(loopEnv);
+                }
+            } else {
+                // Dictionaries (over a snapshot of their keys), the other
+                // collections and pipelines.
+                Pipeline.forEach(source, value -> {
+                    slot.value = value;
+                    body.execute(loopEnv);
+                    return true;
+                });
+            }
+        }
+    }
+
     public static class Function extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         public final String name;
         public final List<String> parameters;
         public final Block body;
+        private Set<String> freeVariables;
+        private boolean analyzed;
 
         public Function(String name, List<String> parameters, Block body) {
             this.name = name;
@@ -132,12 +315,24 @@ public abstract class Stmt {
 
         @Override
         public void execute(Environment env) {
-            FunctionValue function = new FunctionValue(parameters, body, env);
+            if (!analyzed) {
+                freeVariables = FreeVariables.of(parameters, body);
+                analyzed = true;
+            }
+            Environment closure = env;
+            if (freeVariables != null) {
+                // Bind the name first so a recursive function captures itself.
+                env.define(name, Value.ofText(""));
+                closure = env.capture(freeVariables);
+            }
+            FunctionValue function = new FunctionValue(name, parameters, body, closure);
             env.define(name, Value.ofFunction(function));
         }
     }
 
     public static class Return extends Stmt {
+        private static final long serialVersionUID = 1L;
+
         public final Expr value;
 
         public Return(Expr value) {
@@ -151,6 +346,28 @@ public abstract class Stmt {
         }
     }
 
+    // import "path" [as name]: runs the module once and binds it to name.
+    public static class Import extends Stmt {
+        private static final long serialVersionUID = 1L;
+
+        public final String path;
+        public final String name;
+        // The module's absolute path, set once the importing script's
+        // directory is known; otherwise path is taken from the working
+        // directory.
+        String file;
+
+        public Import(String path, String name) {
+            this.path = path;
+            this.name = name;
+        }
+
+        @Override
+        public void execute(Environment env) {
+            env.define(name, Modules.load(file != null ? file : Modules.resolve(path), false));
+        }
+    }
+
     public static class ReturnException extends RuntimeException {
         public final Value value;
 
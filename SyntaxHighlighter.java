@@ -0,0 +1,169 @@
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Segment;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyledDocument;
+import java.awt.Color;
+import java.util.EnumSet;
+import java.util.Set;
+
+// Colours the tokens of a StyledDocument as it is edited. Each edit is fed to
+// an IncrementalLexer, and only the characters whose tokens changed are
+// restyled, so typing stays cheap however long the document is.
+public class SyntaxHighlighter implements DocumentListener {
+    private static final Set<TokenType> KEYWORDS = EnumSet.of(
+            TokenType.FUN, TokenType.RETURN, TokenType.DICT, TokenType.TRUE, TokenType.FALSE,
+            TokenType.AND, TokenType.OR, TokenType.PRINT, TokenType.PRINTUPPER, TokenType.IF,
+            TokenType.ELSE, TokenType.WHILE, TokenType.FOR, TokenType.IN,
+            TokenType.INPUT, TokenType.IMPORT);
+
+    private static final int SLICE = 32 * 1024;
+
+    private final StyledDocument document;
+    private final IncrementalLexer lexer = new IncrementalLexer();
+    private final SimpleAttributeSet plain = new SimpleAttributeSet();
+    private final SimpleAttributeSet keyword = new SimpleAttributeSet();
+    private final SimpleAttributeSet string = new SimpleAttributeSet();
+    private final SimpleAttributeSet number = new SimpleAttributeSet();
+
+    // Pending range to restyle; styles cannot be changed from inside a
+    // DocumentListener callback, so the work is queued on the EDT.
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = -1;
+
+    public SyntaxHighlighter(StyledDocument document) {
+        this.document = document;
+        StyleConstants.setForeground(keyword, new Color(0, 0, 160));
+        StyleConstants.setBold(keyword, true);
+        StyleConstants.setForeground(string, new Color(0, 128, 0));
+        StyleConstants.setForeground(number, new Color(180, 90, 0));
+        lexer.reset(text());
+        markDirty(0, document.getLength());
+        document.addDocumentListener(this);
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        int[] range = lexer.update(text(), e.getOffset(), 0, e.getLength());
+        markDirty(range[0], range[1]);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        if (document.getLength() == 0) {
+            lexer.reset("");
+            return;
+        }
+        int[] range = lexer.update(text(), e.getOffset(), e.getLength(), 0);
+        markDirty(range[0], range[1]);
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes, including our own restyling; nothing to lex.
+    }
+
+    private CharSequence text() {
+        return new DocumentText(document);
+    }
+
+    // A read-only view of the document that fetches characters a window at a
+    // time, so re-lexing near an edit does not copy the whole document.
+    private static final class DocumentText implements CharSequence {
+        private static final int WINDOW = 4096;
+
+        private final StyledDocument document;
+        private final int length;
+        private final Segment segment = new Segment();
+        private int windowStart = 0;
+
+        DocumentText(StyledDocument document) {
+            this.document = document;
+            this.length = document.getLength();
+            segment.setPartialReturn(true);
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            int offset = index - windowStart;
+            if (offset < 0 || offset >= segment.count) {
+                try {
+                    document.getText(index, Math.min(WINDOW, length - index), segment);
+                } catch (BadLocationException e) {
+                    throw new IndexOutOfBoundsException(index);
+                }
+                windowStart = index;
+                offset = 0;
+            }
+            return segment.array[segment.offset + offset];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            try {
+                return document.getText(start, end - start);
+            } catch (BadLocationException e) {
+                throw new IndexOutOfBoundsException(start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+
+    private void markDirty(int from, int to) {
+        boolean scheduled = dirtyTo >= 0;
+        dirtyFrom = Math.min(dirtyFrom, from);
+        dirtyTo = Math.max(dirtyTo, to);
+        if (!scheduled) {
+            SwingUtilities.invokeLater(this::restyle);
+        }
+    }
+
+    private void restyle() {
+        int length = document.getLength();
+        int from = Math.min(dirtyFrom, length);
+        int to = Math.min(dirtyTo, length);
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = -1;
+        if (from >= to) {
+            return;
+        }
+        // Large ranges (a dropped file) are styled a slice at a time so the
+        // editor stays usable while the rest is queued behind user input.
+        int end = to;
+        if (end - from > SLICE) {
+            int i = lexer.indexAt(from + SLICE);
+            end = i < lexer.size() ? Math.max(lexer.end(i), from + SLICE) : to;
+            end = Math.min(end, to);
+        }
+        document.setCharacterAttributes(from, end - from, plain, true);
+        for (int i = lexer.indexAt(from); i < lexer.size() && lexer.start(i) < end; i++) {
+            AttributeSet style = styleFor(lexer.type(i));
+            if (style != null) {
+                document.setCharacterAttributes(lexer.start(i), lexer.end(i) - lexer.start(i), style, true);
+            }
+        }
+        if (end < to) {
+            markDirty(end, to);
+        }
+    }
+
+    private AttributeSet styleFor(TokenType type) {
+        if (KEYWORDS.contains(type)) return keyword;
+        if (type == TokenType.STRING) return string;
+        if (type == TokenType.NUMBER) return number;
+        return null;
+    }
+}
@@ -1,12 +1,24 @@
-public class Token {
+import java.io.Serializable;
+
+public class Token implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public final TokenType type;
     public final String lexeme;
-    public final Double value;   // Only used for NUMBER tokens
+    public final Number value;   // Only used for NUMBER tokens: Long or Double
+    public final int start;      // Source offsets, or -1 when not known
+    public final int end;
+
+    public Token(TokenType type, String lexeme, Number value) {
+        this(type, lexeme, value, -1, -1);
+    }
 
-    public Token(TokenType type, String lexeme, Double value) {
+    public Token(TokenType type, String lexeme, Number value, int start, int end) {
         this.type = type;
         this.lexeme = lexeme;
         this.value = value;
+        this.start = start;
+        this.end = end;
     }
 
     @Override
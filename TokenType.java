@@ -3,7 +3,7 @@ public enum TokenType {
     LEFT_PAREN, RIGHT_PAREN,
     LEFT_BRACE, RIGHT_BRACE,
     LEFT_BRACKET, RIGHT_BRACKET,  // New tokens for array literals and access
-    COMMA, COLON, SEMICOLON,
+    COMMA, COLON, SEMICOLON, DOT,
     PLUS, MINUS, STAR, SLASH,
     
     // One or two character tokens
@@ -34,7 +34,10 @@ public enum TokenType {
     IF,
     ELSE,
     WHILE,
+    FOR,
+    IN,
     INPUT,
+    IMPORT,
     
     EOF
 }
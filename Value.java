@@ -1,21 +1,38 @@
+import java.io.Serializable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-public class Value {
-    public enum ValueType { NUMBER, BOOLEAN, TEXT, ARRAY, DICTIONARY, FUNCTION }
+public class Value implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum ValueType { NUMBER, BOOLEAN, TEXT, ARRAY, DICTIONARY, FUNCTION, RANGE, PIPELINE, ITERATOR, MODULE, PVECTOR, PDICT, SET, DEQUE, HEAP, SORTED_DICT, WRITER }
 
     private final ValueType type;
-    private final Double numberValue;
+    private final Double numberValue;  // null for integers, see longValue
+    private final long longValue;
     private final Boolean boolValue;
     private final String textValue;
     private final List<Value> arrayValue;
     private final Map<Value, Value> dictValue;
     private final FunctionValue functionValue;
     private final String originalNumberLiteral;
+    // Payload of the natively implemented types (RANGE, ...).
+    private final Object objectValue;
+    // Printed form of a NUMBER, computed on first use. Values are immutable,
+    // so a racing recomputation would only produce the same string again.
+    private transient String text;
 
     private Value(ValueType type, Double numberValue, Boolean boolValue, String textValue,
                   List<Value> arrayValue, Map<Value, Value> dictValue, FunctionValue functionValue,
                   String originalNumberLiteral) {
+        this(type, numberValue, boolValue, textValue, arrayValue, dictValue, functionValue,
+                originalNumberLiteral, null);
+    }
+
+    private Value(ValueType type, Double numberValue, Boolean boolValue, String textValue,
+                  List<Value> arrayValue, Map<Value, Value> dictValue, FunctionValue functionValue,
+                  String originalNumberLiteral, Object objectValue) {
         this.type = type;
         this.numberValue = numberValue;
         this.boolValue = boolValue;
@@ -24,6 +41,42 @@ public class Value {
         this.dictValue = dictValue;
         this.functionValue = functionValue;
         this.originalNumberLiteral = originalNumberLiteral;
+        this.objectValue = objectValue;
+        this.longValue = 0;
+    }
+
+    // An exact integer NUMBER.
+    private Value(long longValue, String originalNumberLiteral) {
+        this.type = ValueType.NUMBER;
+        this.numberValue = null;
+        this.longValue = longValue;
+        this.boolValue = null;
+        this.textValue = null;
+        this.arrayValue = null;
+        this.dictValue = null;
+        this.functionValue = null;
+        this.originalNumberLiteral = originalNumberLiteral;
+        this.objectValue = null;
+    }
+
+    // Small integers are shared, as loop counters and indexes mostly are.
+    private static final Value[] SMALL_INTEGERS = new Value[1152];
+
+    static {
+        for (int i = 0; i < SMALL_INTEGERS.length; i++) {
+            SMALL_INTEGERS[i] = new Value(i - 128, null);
+        }
+    }
+
+    public static Value ofInteger(long l) {
+        if (l >= -128 && l < SMALL_INTEGERS.length - 128) {
+            return SMALL_INTEGERS[(int) l + 128];
+        }
+        return new Value(l, null);
+    }
+
+    public static Value ofInteger(long l, String literal) {
+        return new Value(l, literal);
     }
 
     public static Value ofNumber(double d) {
@@ -34,8 +87,11 @@ public class Value {
         return new Value(ValueType.NUMBER, d, null, null, null, null, null, literal);
     }
 
+    private static final Value TRUE = new Value(ValueType.BOOLEAN, null, true, null, null, null, null, null);
+    private static final Value FALSE = new Value(ValueType.BOOLEAN, null, false, null, null, null, null, null);
+
     public static Value ofBoolean(boolean b) {
-        return new Value(ValueType.BOOLEAN, null, b, null, null, null, null, null);
+        return b ? TRUE : FALSE;
     }
 
     public static Value ofText(String s) {
@@ -54,16 +110,84 @@ public class Value {
         return new Value(ValueType.FUNCTION, null, null, null, null, null, func, null);
     }
 
+    public static Value ofRange(RangeValue range) {
+        return new Value(ValueType.RANGE, null, null, null, null, null, null, null, range);
+    }
+
+    public static Value ofPipeline(Pipeline pipeline) {
+        return new Value(ValueType.PIPELINE, null, null, null, null, null, null, null, pipeline);
+    }
+
+    public static Value ofIterator(Iterator<Value> iterator) {
+        return new Value(ValueType.ITERATOR, null, null, null, null, null, null, null, iterator);
+    }
+
+    public static Value ofModule(Module module) {
+        return new Value(ValueType.MODULE, null, null, null, null, null, null, null, module);
+    }
+
+    public static Value ofPVector(PersistentVector vector) {
+        return new Value(ValueType.PVECTOR, null, null, null, null, null, null, null, vector);
+    }
+
+    public static Value ofPDict(PersistentMap map) {
+        return new Value(ValueType.PDICT, null, null, null, null, null, null, null, map);
+    }
+
+    public static Value ofSet(SetValue set) {
+        return new Value(ValueType.SET, null, null, null, null, null, null, null, set);
+    }
+
+    public static Value ofDeque(DequeValue deque) {
+        return new Value(ValueType.DEQUE, null, null, null, null, null, null, null, deque);
+    }
+
+    public static Value ofHeap(HeapValue heap) {
+        return new Value(ValueType.HEAP, null, null, null, null, null, null, null, heap);
+    }
+
+    public static Value ofSortedDict(SortedDictValue dict) {
+        return new Value(ValueType.SORTED_DICT, null, null, null, null, null, null, null, dict);
+    }
+
+    public static Value ofWriter(WriterValue writer) {
+        return new Value(ValueType.WRITER, null, null, null, null, null, null, null, writer);
+    }
+
+    public ValueType getType() { return type; }
     public boolean isNumber() { return type == ValueType.NUMBER; }
+    public boolean isInteger() { return type == ValueType.NUMBER && numberValue == null; }
     public boolean isBoolean() { return type == ValueType.BOOLEAN; }
     public boolean isText() { return type == ValueType.TEXT; }
     public boolean isArray() { return type == ValueType.ARRAY; }
     public boolean isDictionary() { return type == ValueType.DICTIONARY; }
     public boolean isFunction() { return type == ValueType.FUNCTION; }
+    public boolean isRange() { return type == ValueType.RANGE; }
+    public boolean isPipeline() { return type == ValueType.PIPELINE; }
+    public boolean isIterator() { return type == ValueType.ITERATOR; }
+    public boolean isModule() { return type == ValueType.MODULE; }
+    public boolean isPVector() { return type == ValueType.PVECTOR; }
+    public boolean isPDict() { return type == ValueType.PDICT; }
+    public boolean isSet() { return type == ValueType.SET; }
+    public boolean isDeque() { return type == ValueType.DEQUE; }
+    public boolean isHeap() { return type == ValueType.HEAP; }
+    public boolean isSortedDict() { return type == ValueType.SORTED_DICT; }
+    public boolean isWriter() { return type == ValueType.WRITER; }
 
     public double asNumber() {
         if (!isNumber()) throw new RuntimeException("Value is not a number.");
-        return numberValue;
+        return numberValue != null ? numberValue : longValue;
+    }
+
+    // The number as a long: exact for integers, truncated for doubles.
+    public long asLong() {
+        if (!isNumber()) throw new RuntimeException("Value is not a number.");
+        return numberValue != null ? (long) numberValue.doubleValue() : longValue;
+    }
+
+    // The number as it was written in the source, or null if it was computed.
+    String literal() {
+        return originalNumberLiteral;
     }
 
     public boolean asBoolean() {
@@ -91,23 +215,76 @@ public class Value {
         return functionValue;
     }
 
+    public RangeValue asRange() {
+        if (!isRange()) throw new RuntimeException("Value is not a range.");
+        return (RangeValue) objectValue;
+    }
+
+    public Pipeline asPipeline() {
+        if (!isPipeline()) throw new RuntimeException("Value is not a pipeline.");
+        return (Pipeline) objectValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Iterator<Value> asIterator() {
+        if (!isIterator()) throw new RuntimeException("Value is not an iterator.");
+        return (Iterator<Value>) objectValue;
+    }
+
+    public Module asModule() {
+        if (!isModule()) throw new RuntimeException("Value is not a module.");
+        return (Module) objectValue;
+    }
+
+    public PersistentVector asPVector() {
+        if (!isPVector()) throw new RuntimeException("Value is not a persistent vector.");
+        return (PersistentVector) objectValue;
+    }
+
+    public PersistentMap asPDict() {
+        if (!isPDict()) throw new RuntimeException("Value is not a persistent dictionary.");
+        return (PersistentMap) objectValue;
+    }
+
+    public SetValue asSet() {
+        if (!isSet()) throw new RuntimeException("Value is not a set.");
+        return (SetValue) objectValue;
+    }
+
+    public DequeValue asDeque() {
+        if (!isDeque()) throw new RuntimeException("Value is not a deque.");
+        return (DequeValue) objectValue;
+    }
+
+    public HeapValue asHeap() {
+        if (!isHeap()) throw new RuntimeException("Value is not a heap.");
+        return (HeapValue) objectValue;
+    }
+
+    public SortedDictValue asSortedDict() {
+        if (!isSortedDict()) throw new RuntimeException("Value is not a sorted dictionary.");
+        return (SortedDictValue) objectValue;
+    }
+
+    public WriterValue asWriter() {
+        if (!isWriter()) throw new RuntimeException("Value is not a writer.");
+        return (WriterValue) objectValue;
+    }
+
     @Override
     public String toString() {
         switch (type) {
             case NUMBER:
-                if (originalNumberLiteral != null) {
-                    if (originalNumberLiteral.contains(".")) {
-                        return originalNumberLiteral;
-                    } else {
-                        return originalNumberLiteral;
-                    }
-                } else {
-                    if (numberValue % 1.0 == 0.0) {
-                        return String.valueOf(numberValue.longValue());
+                if (text == null) {
+                    if (originalNumberLiteral != null) {
+                        text = originalNumberLiteral;
+                    } else if (numberValue == null) {
+                        text = Long.toString(longValue);
                     } else {
-                        return numberValue.toString();
+                        text = DoubleFormatter.toString(numberValue);
                     }
                 }
+                return text;
             case BOOLEAN:
                 return boolValue.toString();
             case TEXT:
@@ -118,11 +295,75 @@ public class Value {
                 return dictValue.toString();
             case FUNCTION:
                 return "<function>";
+            case RANGE:
+            case PIPELINE:
+            case ITERATOR:
+            case MODULE:
+            case PVECTOR:
+            case PDICT:
+            case SET:
+            case DEQUE:
+            case HEAP:
+            case SORTED_DICT:
+            case WRITER:
+                return objectValue.toString();
             default:
                 return "Unknown";
         }
     }
 
+    // Keeps booleans and small integers canonical when read from a snapshot.
+    private Object readResolve() {
+        if (type == ValueType.BOOLEAN) {
+            return ofBoolean(boolValue);
+        }
+        if (isInteger() && originalNumberLiteral == null) {
+            return ofInteger(longValue);
+        }
+        return this;
+    }
+
+    // Appends the printed form to sb. Text and numbers are written directly,
+    // without building an intermediate String.
+    public void appendTo(StringBuilder sb) {
+        if (type == ValueType.TEXT) {
+            sb.append(textValue);
+        } else if (type == ValueType.NUMBER && text == null && originalNumberLiteral == null) {
+            if (numberValue == null) {
+                sb.append(longValue);
+            } else {
+                DoubleFormatter.append(sb, numberValue);
+            }
+        } else {
+            sb.append(toString());
+        }
+    }
+
+    // The order heaps, sorting and sorted dictionaries use: numbers by
+    // value, integers compared exactly, and texts by their characters. It
+    // agrees with equals, so equal values compare as 0. Other values have no
+    // order.
+    public static int compare(Value a, Value b) {
+        if (a.type == ValueType.NUMBER && b.type == ValueType.NUMBER) {
+            if (a.numberValue == null && b.numberValue == null) {
+                return Long.compare(a.longValue, b.longValue);
+            }
+            return Double.compare(a.asNumber(), b.asNumber());
+        }
+        if (a.type == ValueType.TEXT && b.type == ValueType.TEXT) {
+            return a.textValue.compareTo(b.textValue);
+        }
+        throw new RuntimeException("Cannot compare " + a + " and " + b + ".");
+    }
+
+    // Fails unless the value has an order under compare, for callers that
+    // have nothing to compare it with yet.
+    public static void requireOrdered(Value value) {
+        if (value.type != ValueType.NUMBER && value.type != ValueType.TEXT) {
+            throw new RuntimeException("Cannot compare " + value + " and " + value + ".");
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -131,7 +372,11 @@ public class Value {
         if (type != value.type) return false;
         switch (type) {
             case NUMBER:
-                return Double.compare(numberValue, value.numberValue) == 0;
+                // Integers and doubles with the same value are equal.
+                if (numberValue == null && value.numberValue == null) {
+                    return longValue == value.longValue;
+                }
+                return Double.compare(asNumber(), value.asNumber()) == 0;
             case BOOLEAN:
                 return boolValue.equals(value.boolValue);
             case TEXT:
@@ -142,6 +387,18 @@ public class Value {
                 return dictValue.equals(value.dictValue);
             case FUNCTION:
                 return functionValue.equals(value.functionValue);
+            case RANGE:
+            case PIPELINE:
+            case ITERATOR:
+            case MODULE:
+            case PVECTOR:
+            case PDICT:
+            case SET:
+            case DEQUE:
+            case HEAP:
+            case SORTED_DICT:
+            case WRITER:
+                return objectValue.equals(value.objectValue);
             default:
                 return false;
         }
@@ -151,7 +408,7 @@ public class Value {
     public int hashCode() {
         switch (type) {
             case NUMBER:
-                return Double.hashCode(numberValue);
+                return Double.hashCode(asNumber());
             case BOOLEAN:
                 return boolValue.hashCode();
             case TEXT:
@@ -162,6 +419,18 @@ public class Value {
                 return dictValue.hashCode();
             case FUNCTION:
                 return functionValue.hashCode();
+            case RANGE:
+            case PIPELINE:
+            case ITERATOR:
+            case MODULE:
+            case PVECTOR:
+            case PDICT:
+            case SET:
+            case DEQUE:
+            case HEAP:
+            case SORTED_DICT:
+            case WRITER:
+                return objectValue.hashCode();
             default:
                 return 0;
         }
@@ -0,0 +1,88 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// A text file open for writing, from open_writer. Writes go through one
+// buffer and reach the file when it fills, so writing a line at a time costs
+// no more than building the whole text first. The file is closed by close,
+// or when the interpreter exits, whichever comes first.
+public class WriterValue implements AutoCloseable {
+    private static final int BUFFER = 64 * 1024;
+    private static final Set<WriterValue> open = Collections.synchronizedSet(new LinkedHashSet<>());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(WriterValue::closeAll, "close writers"));
+    }
+
+    private final String path;
+    private Writer writer;
+
+    public WriterValue(String path, boolean append) {
+        this.path = path;
+        try {
+            // Files.newBufferedWriter has a fixed 8 KB buffer, so the stream is
+            // wrapped here instead.
+            writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Path.of(path),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING),
+                    StandardCharsets.UTF_8), BUFFER);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write " + path + ": " + e.getMessage());
+        }
+        open.add(this);
+    }
+
+    public synchronized void write(String text) {
+        if (writer == null) {
+            throw new RuntimeException("Cannot write " + path + ": the writer is closed.");
+        }
+        try {
+            writer.write(text);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write " + path + ": " + e.getMessage());
+        }
+    }
+
+    // Flushes what is left in the buffer. Closing twice does nothing.
+    @Override
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        open.remove(this);
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write " + path + ": " + e.getMessage());
+        } finally {
+            writer = null;
+        }
+    }
+
+    private static void closeAll() {
+        WriterValue[] writers;
+        synchronized (open) {
+            writers = open.toArray(new WriterValue[0]);
+        }
+        for (WriterValue writer : writers) {
+            try {
+                writer.close();
+            } catch (RuntimeException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<writer " + path + ">";
+    }
+}